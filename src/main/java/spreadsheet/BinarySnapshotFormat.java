@@ -0,0 +1,188 @@
+package spreadsheet;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.FormulaShape;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.FormulaProgram;
+
+// Binary save format for fast restarts, next to the S2V text format.
+// Everything a load would otherwise derive is stored: compiled formula shapes (once per shape),
+// the cells with their cached values, and the input edges of the dependency graph. Reading it
+// back parses no formula and recalculates nothing; only the reverse edges are re-indexed.
+//
+// Layout (big-endian, DataOutput): magic, version, journal generation (version 2), then
+//   shapes: count, FormulaShape.writeTo each
+//   cells:  count, then row, column, content, kind (literal / formula);
+//           a formula adds its shape index, expression, value type, number and error message
+//   graph:  count, then row, column, cell inputs (count, row/column pairs), ranges (count, bounds)
+// Strings are a length followed by UTF-8 bytes. Readers reject versions newer than their own.
+
+final class BinarySnapshotFormat {
+    private static final int MAGIC = 0x53325642; // "S2VB"
+    // 2: journal generation after the version, see EditJournal; version 1 files read as 0
+    static final int VERSION = 2;
+
+    private static final byte LITERAL = 0;
+    private static final byte FORMULA = 1;
+    private static final Cell.ValueType[] VALUE_TYPES = Cell.ValueType.values();
+
+    private BinarySnapshotFormat() {
+    }
+
+    static void write(DataOutput out, CellStore cells, DependencyGraph dependencies, long generation)
+            throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(generation);
+
+        List<Cell> all = new ArrayList<>(cells.size());
+        cells.forEach(all::add);
+        Map<FormulaShape, Integer> shapeIndex = new IdentityHashMap<>();
+        List<FormulaShape> shapes = new ArrayList<>();
+        for (Cell cell : all) {
+            CompiledFormula formula = cell.getFormula();
+            if (formula != null && !shapeIndex.containsKey(formula.getShape())) {
+                shapeIndex.put(formula.getShape(), shapes.size());
+                shapes.add(formula.getShape());
+            }
+        }
+        out.writeInt(shapes.size());
+        for (FormulaShape shape : shapes) {
+            shape.writeTo(out);
+        }
+
+        out.writeInt(all.size());
+        for (Cell cell : all) {
+            writeAddress(out, cell.getAddress());
+            writeString(out, cell.getContent());
+            CompiledFormula formula = cell.getFormula();
+            if (formula == null) {
+                // literals are classified again on load, which is cheaper than storing the result
+                out.writeByte(LITERAL);
+                continue;
+            }
+            out.writeByte(FORMULA);
+            out.writeInt(shapeIndex.get(formula.getShape()));
+            writeString(out, formula.getExpression());
+            Cell.ValueType type = cell.getValueType();
+            out.writeByte(type.ordinal());
+            out.writeDouble(cell.getNumber());
+            writeString(out, type == Cell.ValueType.ERROR ? cell.getError().getMessage() : "");
+        }
+
+        Set<CellAddress> withInputs = dependencies.addressesWithInputs();
+        out.writeInt(withInputs.size());
+        for (CellAddress address : withInputs) {
+            writeAddress(out, address);
+            Set<CellAddress> inputs = dependencies.getCellInputs(address);
+            out.writeInt(inputs.size());
+            for (CellAddress input : inputs) {
+                writeAddress(out, input);
+            }
+            List<RangeBounds> ranges = dependencies.getRangeInputs(address);
+            out.writeInt(ranges.size());
+            for (RangeBounds range : ranges) {
+                FormulaProgram.writeRange(out, range);
+            }
+        }
+    }
+
+    static long read(DataInput in, Spreadsheet sheet, CellStore cells, DependencyGraph dependencies)
+            throws IOException {
+        // the store and graph must be empty; returns the journal generation
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a spreadsheet snapshot");
+        }
+        int version = in.readInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        long generation = (version >= 2) ? in.readLong() : 0L;
+
+        FormulaShape[] shapes = new FormulaShape[FormulaProgram.readLength(in)];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = FormulaShape.readFrom(in);
+        }
+
+        int cellCount = FormulaProgram.readLength(in);
+        for (int i = 0; i < cellCount; i++) {
+            CellAddress address = readAddress(in);
+            String content = readString(in);
+            Cell cell = new Cell(sheet, address, "");
+            byte kind = in.readByte();
+            if (kind == LITERAL) {
+                cell.setContent(content, null);
+            } else if (kind == FORMULA) {
+                int shape = in.readInt();
+                if (shape < 0 || shape >= shapes.length) {
+                    throw new IOException("Unknown formula shape " + shape);
+                }
+                String expression = readString(in);
+                cell.setContent(content, CompiledFormula.restore(expression, shapes[shape],
+                    address.getRow(), address.getColumn()));
+                int type = in.readUnsignedByte();
+                if (type >= VALUE_TYPES.length) {
+                    throw new IOException("Unknown value type " + type);
+                }
+                double number = in.readDouble();
+                String message = readString(in);
+                cell.restoreValue(VALUE_TYPES[type], number,
+                    VALUE_TYPES[type] == Cell.ValueType.ERROR ? new FormulaException(message) : null);
+            } else {
+                throw new IOException("Unknown cell kind " + kind);
+            }
+            cells.put(cell);
+        }
+
+        int graphCount = FormulaProgram.readLength(in);
+        for (int i = 0; i < graphCount; i++) {
+            CellAddress address = readAddress(in);
+            int inputCount = FormulaProgram.readLength(in);
+            Set<CellAddress> inputs = new HashSet<>(inputCount * 2);
+            for (int j = 0; j < inputCount; j++) {
+                inputs.add(readAddress(in));
+            }
+            int rangeCount = FormulaProgram.readLength(in);
+            List<RangeBounds> ranges = new ArrayList<>(rangeCount);
+            for (int j = 0; j < rangeCount; j++) {
+                ranges.add(FormulaProgram.readRange(in));
+            }
+            dependencies.setInputs(address, inputs, ranges);
+        }
+        return generation;
+    }
+
+    private static void writeAddress(DataOutput out, CellAddress address) throws IOException {
+        out.writeInt(address.getRow());
+        out.writeInt(address.getColumn());
+    }
+
+    private static CellAddress readAddress(DataInput in) throws IOException {
+        return new CellAddress(in.readInt(), in.readInt());
+    }
+
+    private static void writeString(DataOutput out, String value) throws IOException {
+        // writeUTF stops at 64 KB, cell text can be longer
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[FormulaProgram.readLength(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -1,72 +1,237 @@
 package spreadsheet;
 import spreadsheet.exceptions.FormulaException;
-import spreadsheet.formula.FormulaEngine;
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.FormulaShapeCache;
 
 public class Cell {
+    // typed value of a cell: literals are classified once when content is set,
+    // formulas produce NUMBER or ERROR when they are recalculated
+    enum ValueType {
+        EMPTY,
+        NUMBER,
+        TEXT,
+        ERROR
+    }
+
     private final Spreadsheet spreadsheet;
+    // write token of the sheet version that created this cell; a sheet only changes cells
+    // carrying its current token, anything else may be shared with a fork and is copied first
+    private final Object owner;
     private final CellAddress address;
     private String content;
+    // parsed once per content change; null for plain values
+    private CompiledFormula formula;
+    private ValueType valueType;
+    private double number;
+    private FormulaException error;
+    // formula values are recomputed when the spreadsheet marks them dirty after an edit
+    private boolean dirty;
+    // formatted on first request only, recalculation just drops it
     private String displayValue;
 
     public Cell(Spreadsheet spreadsheet, CellAddress address, String content) {
         this.spreadsheet = spreadsheet;
+        this.owner = (spreadsheet == null) ? null : spreadsheet.writeToken();
         this.address = address;
         setContent(content);
     }
 
+    private Cell(Spreadsheet spreadsheet, Cell source) {
+        this.spreadsheet = spreadsheet;
+        this.owner = spreadsheet.writeToken();
+        this.address = source.address;
+        this.content = source.content;
+        this.formula = source.formula;
+        this.valueType = source.valueType;
+        this.number = source.number;
+        this.error = source.error;
+        this.dirty = source.dirty;
+        this.displayValue = source.displayValue;
+    }
+
+    Cell copyFor(Spreadsheet spreadsheet) {
+        // the compiled formula is immutable and stays shared, only the value state is copied
+        return new Cell(spreadsheet, this);
+    }
+
+    boolean isOwnedBy(Object writeToken) {
+        return owner == writeToken;
+    }
+
     public CellAddress getAddress() { return address; }
 
     public String getContent() { return content; }
 
-    public String getDisplayValue() { return displayValue; }
+    public String getDisplayValue() {
+        if (dirty) {
+            computeValue();
+        }
+        if (displayValue == null) {
+            displayValue = formatDisplayValue();
+        }
+        return displayValue;
+    }
+
+    CompiledFormula getFormula() { return formula; }
+
+    ValueType getValueType() {
+        if (dirty) {
+            computeValue();
+        }
+        return valueType;
+    }
 
     public void setContent(String content) {
-        this.content = (content == null) ? "" : content;
-        evaluate();
+        String normalized = (content == null) ? "" : content;
+        try {
+            setContent(normalized, compileFormula(normalized, address, null));
+        } catch (FormulaException ex) {
+            // keep the text so the user can fix it, the error shows up as the value
+            this.content = normalized;
+            this.formula = null;
+            setValue(ValueType.ERROR, 0.0, ex);
+            dirty = false;
+        }
     }
 
-    void recalculateDisplay() {
-        evaluate();
+    void setContent(String content, CompiledFormula formula) {
+        // used by the spreadsheet, which has already compiled the formula to collect dependencies.
+        // Literals get their typed value right away, formulas wait for the recalculation pass.
+        this.content = (content == null) ? "" : content;
+        this.formula = formula;
+        if (formula == null) {
+            classifyLiteral();
+            dirty = false;
+        } else {
+            displayValue = null;
+            dirty = true;
+        }
     }
 
-    private void evaluate() {
+    static CompiledFormula compileFormula(String content, CellAddress address, FormulaShapeCache shapes) {
+        // returns null when the content is not a formula.
+        // References are compiled relative to the address; with a cache, copies share one shape.
+        if (content == null) {
+            return null;
+        }
         String trimmed = content.stripLeading();
         if (!trimmed.startsWith("=")) {
-            displayValue = content;
-            return;
+            return null;
         }
+        String expression = trimmed.substring(1);
+        if (shapes == null) {
+            return CompiledFormula.compile(expression, address.getRow(), address.getColumn());
+        }
+        return shapes.compile(expression, address.getRow(), address.getColumn());
+    }
 
-        String formula = trimmed.substring(1);
-        try {
-            double result = FormulaEngine.evaluate(formula, spreadsheet);
-            displayValue = Double.toString(result);
-        } catch (FormulaException ex) {
-            displayValue = "#ERR";
+    void recalculate() {
+        if (dirty) {
+            computeValue();
         }
     }
 
-    double evaluateNumericValue() {
-        String Candidate = content.trim();
-        String trimmed = content.stripLeading();
+    void restoreValue(ValueType type, double value, FormulaException failure) {
+        // value saved with a binary snapshot, so a loaded formula does not need a recalculation
+        dirty = false;
+        setValue(type, value, failure);
+    }
 
-        if (!trimmed.startsWith("=")) {
-            return parseLiteral(Candidate);
+    double getNumber() {
+        // raw stored number, for snapshots; callers check the value type first
+        return number;
+    }
+
+    FormulaException getError() {
+        return error;
+    }
+
+    void setComputedValue(double value) {
+        // result computed outside the cell, e.g. by a vectorized run of copies of its formula
+        dirty = false;
+        setValue(ValueType.NUMBER, value, null);
+    }
+
+    boolean isBlank() {
+        return formula == null && valueType == ValueType.EMPTY;
+    }
+
+    boolean isNumericLiteral() {
+        // plain numeric content, which the columnar store keeps as a raw double
+        return formula == null && valueType == ValueType.NUMBER;
+    }
+
+    boolean isError() {
+        return getValueType() == ValueType.ERROR;
+    }
+
+    void markDirty() {
+        // only formulas depend on other cells
+        if (formula != null) {
+            dirty = true;
         }
+    }
 
-        String formula = trimmed.substring(1);
-        return FormulaEngine.evaluate(formula, spreadsheet);
+    boolean isDirty() {
+        return dirty;
     }
- 
-    private double parseLiteral(String text) {
-        String trimmed = text.trim();
+
+    double evaluateNumericValue() {
+        // each cell is computed at most once until it is marked dirty again
+        if (dirty) {
+            computeValue();
+        }
+        switch (valueType) {
+            case NUMBER:
+                return number;
+            case EMPTY:
+                return 0.0;
+            case ERROR:
+                throw error;
+            case TEXT:
+            default:
+                throw new FormulaException("Referenced cell '" + addressString() + "' is not numeric");
+        }
+    }
+
+    private void computeValue() {
+        dirty = false;
+        try {
+            setValue(ValueType.NUMBER, formula.evaluate(spreadsheet), null);
+        } catch (FormulaException ex) {
+            setValue(ValueType.ERROR, 0.0, ex);
+        }
+    }
+
+    private void classifyLiteral() {
+        String trimmed = content.trim();
         if (trimmed.isEmpty()) {
-            return 0.0;
+            setValue(ValueType.EMPTY, 0.0, null);
+            return;
         }
         try {
-            return Double.parseDouble(trimmed);
+            setValue(ValueType.NUMBER, Double.parseDouble(trimmed), null);
         } catch (NumberFormatException ex) {
-            throw new FormulaException("Referenced cell '" + addressString() + "' is not numeric", ex);
+            setValue(ValueType.TEXT, 0.0, null);
+        }
+    }
+
+    private void setValue(ValueType type, double value, FormulaException failure) {
+        this.valueType = type;
+        this.number = value;
+        this.error = failure;
+        this.displayValue = null;
+    }
+
+    private String formatDisplayValue() {
+        if (valueType == ValueType.ERROR) {
+            return "#ERR";
+        }
+        if (formula == null) {
+            // literals are shown as typed
+            return content;
         }
+        return Double.toString(number);
     }
 
     private String addressString() {
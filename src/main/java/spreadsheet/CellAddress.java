@@ -61,8 +61,31 @@ public class CellAddress {
         return builder.toString();
     }
 
+    public long pack() {
+        return pack(row, column);
+    }
+
+    public static long pack(int row, int column) {
+        // row in the high half, column in the low half, used as a primitive map key
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    public static int unpackRow(long key) {
+        return (int) (key >>> 32);
+    }
+
+    public static int unpackColumn(long key) {
+        return (int) key;
+    }
+
+    public static CellAddress unpack(long key) {
+        return new CellAddress(unpackRow(key), unpackColumn(key));
+    }
+
     public int hashCode(){
-        return 31* row + column;
+        // 31*row+column collided for wide sheets (B1 and A32 hashed the same), so mix the packed key
+        long mixed = pack() * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32));
     }
 
     public boolean equals(Object obj) {
@@ -0,0 +1,76 @@
+package spreadsheet;
+
+import java.util.List;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.FormulaProgram;
+
+// Unit of work for the recalculation engine: one cell, or a run of vertically adjacent cells
+// holding copies of the same formula (=A1*B1+C1, =A2*B2+C2, ...). A run is evaluated as one
+// array operation over its input columns, see FormulaProgram.evaluateRows.
+
+final class CellRun {
+    // shorter runs are cheaper to evaluate one cell at a time
+    static final int MIN_LENGTH = 8;
+
+    private final CellAddress first;
+    // null for a single cell, which is most units; only runs pay for a list
+    private final List<CellAddress> addresses;
+
+    private CellRun(CellAddress first, List<CellAddress> addresses) {
+        this.first = first;
+        this.addresses = addresses;
+    }
+
+    static CellRun single(CellAddress address) {
+        return new CellRun(address, null);
+    }
+
+    static CellRun of(List<CellAddress> addresses) {
+        return new CellRun(addresses.get(0), addresses);
+    }
+
+    int size() {
+        return (addresses == null) ? 1 : addresses.size();
+    }
+
+    CellAddress get(int index) {
+        return (addresses == null) ? first : addresses.get(index);
+    }
+
+    int evaluate(CellStore cells, CellLookup lookup) {
+        // returns the number of cells evaluated
+        if (addresses == null) {
+            return evaluateSingle(cells, first);
+        }
+        CompiledFormula formula = cells.get(first.getRow(), first.getColumn()).getFormula();
+        FormulaProgram program = formula.getProgram();
+        double[] values = new double[addresses.size()];
+        try {
+            program.evaluateRows(lookup, first.getRow(), first.getColumn(), values);
+        } catch (FormulaException ex) {
+            // some row fails; per-cell evaluation records the error on the right cells
+            int count = 0;
+            for (CellAddress address : addresses) {
+                count += evaluateSingle(cells, address);
+            }
+            return count;
+        }
+        for (int i = 0; i < values.length; i++) {
+            CellAddress address = addresses.get(i);
+            cells.get(address.getRow(), address.getColumn()).setComputedValue(values[i]);
+        }
+        return values.length;
+    }
+
+    private static int evaluateSingle(CellStore cells, CellAddress address) {
+        Cell cell = cells.get(address.getRow(), address.getColumn());
+        if (cell == null) {
+            return 0;
+        }
+        cell.recalculate();
+        return 1;
+    }
+}
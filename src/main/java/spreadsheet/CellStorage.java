@@ -0,0 +1,22 @@
+package spreadsheet;
+
+public enum CellStorage {
+    // hash map keyed by packed row/column, good for sparse sheets
+    HASHED,
+    // fixed-size column chunks with raw doubles for numeric literals, good for dense numeric blocks
+    COLUMNAR,
+    // persistent trie, fork() shares it in O(1); for what-if copies of a base model
+    PERSISTENT;
+
+    CellStore createStore() {
+        switch (this) {
+            case COLUMNAR:
+                return new ColumnarCellStore();
+            case PERSISTENT:
+                return new PersistentCellStore();
+            case HASHED:
+            default:
+                return new HashCellStore();
+        }
+    }
+}
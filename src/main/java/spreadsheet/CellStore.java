@@ -0,0 +1,34 @@
+package spreadsheet;
+
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Storage engine behind a Spreadsheet, see CellStorage for the available implementations.
+// Cells are put back after every content change so a store can refresh what it derives from them.
+
+interface CellStore {
+    Cell get(int row, int column);
+
+    void put(Cell cell);
+
+    Cell remove(int row, int column);
+
+    int size();
+
+    void forEach(Consumer<Cell> action);
+
+    // numeric value of every non-empty cell inside the range; throws FormulaException for text
+    void forEachValue(RangeBounds bounds, DoubleConsumer consumer);
+
+    // values of rows firstRow .. firstRow + out.length - 1 in one column, as findCell returns them:
+    // 0.0 for missing cells, FormulaException for text and errors
+    void readColumn(int firstRow, int column, double[] out);
+
+    // independent store holding the same Cell objects; the spreadsheet copies a shared cell
+    // before changing it. PersistentCellStore does this in O(1), the others copy their index.
+    CellStore fork();
+
+    void clear();
+}
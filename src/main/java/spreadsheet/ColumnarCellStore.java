@@ -0,0 +1,212 @@
+package spreadsheet;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Column-oriented store for dense numeric sheets.
+// Each column is cut into chunks of CHUNK_SIZE rows. A chunk has a presence bitmap, a double[]
+// holding numeric literals parsed once when the cell is stored (with a second bitmap marking
+// them) and the Cell objects for content, formulas and text. Scanning a column range walks the
+// bitmaps and reads numeric literals straight from the array, without hash probes or parsing.
+
+final class ColumnarCellStore implements CellStore {
+    private static final int CHUNK_BITS = 10;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    // keyed by CellAddress.pack(chunkIndex, column)
+    private final LongMap<Chunk> chunks = new LongMap<>();
+    private int size;
+
+    public Cell get(int row, int column) {
+        Chunk chunk = chunks.get(CellAddress.pack(row >> CHUNK_BITS, column));
+        if (chunk == null) {
+            return null;
+        }
+        return chunk.cells[row & CHUNK_MASK];
+    }
+
+    public void put(Cell cell) {
+        int row = cell.getAddress().getRow();
+        int column = cell.getAddress().getColumn();
+        long key = CellAddress.pack(row >> CHUNK_BITS, column);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            chunk = new Chunk();
+            chunks.put(key, chunk);
+        }
+        if (chunk.set(row & CHUNK_MASK, cell)) {
+            size++;
+        }
+    }
+
+    public Cell remove(int row, int column) {
+        long key = CellAddress.pack(row >> CHUNK_BITS, column);
+        Chunk chunk = chunks.get(key);
+        if (chunk == null) {
+            return null;
+        }
+        Cell removed = chunk.clear(row & CHUNK_MASK);
+        if (removed != null) {
+            size--;
+            if (chunk.count == 0) {
+                chunks.remove(key);
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Consumer<Cell> action) {
+        chunks.forEach((key, chunk) -> {
+            for (int word = 0; word < Chunk.WORDS; word++) {
+                long bits = chunk.present[word];
+                while (bits != 0) {
+                    int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+                    action.accept(chunk.cells[index]);
+                    bits &= bits - 1;
+                }
+            }
+        });
+    }
+
+    public void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+        // column by column; within a column only the chunks overlapping the rows are touched
+        int firstChunk = bounds.getRowMin() >> CHUNK_BITS;
+        int lastChunk = bounds.getRowMax() >> CHUNK_BITS;
+        for (int column = bounds.getColMin(); column <= bounds.getColMax(); column++) {
+            for (int chunkIndex = firstChunk; chunkIndex <= lastChunk; chunkIndex++) {
+                Chunk chunk = chunks.get(CellAddress.pack(chunkIndex, column));
+                if (chunk == null) {
+                    continue;
+                }
+                int from = (chunkIndex == firstChunk) ? bounds.getRowMin() & CHUNK_MASK : 0;
+                int to = (chunkIndex == lastChunk) ? bounds.getRowMax() & CHUNK_MASK : CHUNK_MASK;
+                chunk.visitValues(from, to, consumer);
+            }
+        }
+    }
+
+    public void readColumn(int firstRow, int column, double[] out) {
+        // chunk by chunk, numeric literals are copied straight from the chunk arrays
+        int row = firstRow;
+        int filled = 0;
+        while (filled < out.length) {
+            int index = row & CHUNK_MASK;
+            int length = Math.min(out.length - filled, CHUNK_SIZE - index);
+            Chunk chunk = chunks.get(CellAddress.pack(row >> CHUNK_BITS, column));
+            if (chunk == null) {
+                Arrays.fill(out, filled, filled + length, 0.0);
+            } else {
+                chunk.readValues(index, out, filled, length);
+            }
+            filled += length;
+            row += length;
+        }
+    }
+
+    public CellStore fork() {
+        ColumnarCellStore copy = new ColumnarCellStore();
+        chunks.forEach((key, chunk) -> copy.chunks.put(key, chunk.copy()));
+        copy.size = size;
+        return copy;
+    }
+
+    public void clear() {
+        chunks.clear();
+        size = 0;
+    }
+
+    private static final class Chunk {
+        private static final int WORDS = CHUNK_SIZE / 64;
+
+        private final long[] present = new long[WORDS];
+        private final long[] numeric = new long[WORDS];
+        private final double[] numbers = new double[CHUNK_SIZE];
+        private final Cell[] cells = new Cell[CHUNK_SIZE];
+        private int count;
+
+        Chunk copy() {
+            Chunk copy = new Chunk();
+            System.arraycopy(present, 0, copy.present, 0, WORDS);
+            System.arraycopy(numeric, 0, copy.numeric, 0, WORDS);
+            System.arraycopy(numbers, 0, copy.numbers, 0, CHUNK_SIZE);
+            System.arraycopy(cells, 0, copy.cells, 0, CHUNK_SIZE);
+            copy.count = count;
+            return copy;
+        }
+
+        boolean set(int index, Cell cell) {
+            // returns true when the slot was empty before
+            int word = index >> 6;
+            long bit = 1L << index;
+            boolean added = (present[word] & bit) == 0;
+            present[word] |= bit;
+            cells[index] = cell;
+            if (cell.isNumericLiteral()) {
+                numbers[index] = cell.evaluateNumericValue();
+                numeric[word] |= bit;
+            } else {
+                numeric[word] &= ~bit;
+            }
+            if (added) {
+                count++;
+            }
+            return added;
+        }
+
+        Cell clear(int index) {
+            int word = index >> 6;
+            long bit = 1L << index;
+            if ((present[word] & bit) == 0) {
+                return null;
+            }
+            Cell removed = cells[index];
+            present[word] &= ~bit;
+            numeric[word] &= ~bit;
+            cells[index] = null;
+            count--;
+            return removed;
+        }
+
+        void readValues(int from, double[] out, int offset, int length) {
+            for (int i = 0; i < length; i++) {
+                int index = from + i;
+                long bit = 1L << index;
+                if ((numeric[index >> 6] & bit) != 0) {
+                    out[offset + i] = numbers[index];
+                } else if ((present[index >> 6] & bit) != 0) {
+                    out[offset + i] = cells[index].evaluateNumericValue();
+                } else {
+                    out[offset + i] = 0.0;
+                }
+            }
+        }
+
+        void visitValues(int from, int to, DoubleConsumer consumer) {
+            for (int word = from >> 6; word <= to >> 6; word++) {
+                int low = Math.max(from, word << 6) - (word << 6);
+                int high = Math.min(to, (word << 6) + 63) - (word << 6);
+                long window = (-1L << low) & (-1L >>> (63 - high));
+                long bits = present[word] & window;
+                long numericBits = numeric[word];
+                while (bits != 0) {
+                    int offset = Long.numberOfTrailingZeros(bits);
+                    int index = (word << 6) + offset;
+                    if ((numericBits & (1L << offset)) != 0) {
+                        consumer.accept(numbers[index]);
+                    } else if (!cells[index].isBlank()) {
+                        consumer.accept(cells[index].evaluateNumericValue());
+                    }
+                    bits &= bits - 1;
+                }
+            }
+        }
+    }
+}
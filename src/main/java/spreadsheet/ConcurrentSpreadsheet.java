@@ -0,0 +1,183 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+// Spreadsheet for one writer and many readers.
+// Writes go to an ordinary Spreadsheet under a lock. After each write the values of the cells it
+// touched are copied into a new version of a persistent map and published through a volatile
+// field, so readers never lock and never see a half-recalculated sheet: they read the last
+// published Snapshot, and a Snapshot they hold keeps its values for as long as they want.
+// A version shares all unchanged cells with the previous one, an edit costs O(affected cells).
+
+public final class ConcurrentSpreadsheet {
+    private final Spreadsheet sheet;
+    private final Object writeLock = new Object();
+    private volatile Snapshot current = new Snapshot(PersistentLongMap.empty(), 0);
+
+    public ConcurrentSpreadsheet() {
+        this(CellStorage.HASHED);
+    }
+
+    public ConcurrentSpreadsheet(CellStorage storage) {
+        this.sheet = new Spreadsheet(storage);
+    }
+
+    // Reads, never blocked by writers
+
+    public Snapshot snapshot() {
+        return current;
+    }
+
+    public String getCellContent(String address) {
+        return current.getCellContent(address);
+    }
+
+    public String getCellDisplayValue(String address) {
+        return current.getCellDisplayValue(address);
+    }
+
+    public boolean isCellError(String address) {
+        return current.isCellError(address);
+    }
+
+    // Writes, one at a time
+
+    public void setCellContent(String address, String content) {
+        setCellContent(CellAddress.parseA1(address), content);
+    }
+
+    public void setCellContent(CellAddress address, String content) {
+        synchronized (writeLock) {
+            try {
+                sheet.setCellContent(address, content);
+            } finally {
+                // after a rejected edit this republishes unchanged values, which is harmless
+                publish(sheet.getLastRecalculatedCells());
+            }
+        }
+    }
+
+    public void applyEdits(Map<CellAddress, String> edits) {
+        synchronized (writeLock) {
+            try {
+                sheet.applyEdits(edits);
+            } finally {
+                publish(sheet.getLastRecalculatedCells());
+            }
+        }
+    }
+
+    public void loadFromS2vString(String s2v) {
+        synchronized (writeLock) {
+            try {
+                sheet.loadFromS2vString(s2v);
+            } finally {
+                publishAll();
+            }
+        }
+    }
+
+    public void loadFromFile(String filename) throws IOException {
+        synchronized (writeLock) {
+            try {
+                sheet.loadFromFile(filename);
+            } finally {
+                publishAll();
+            }
+        }
+    }
+
+    public void saveToFile(String filename) throws IOException {
+        synchronized (writeLock) {
+            sheet.saveToFile(filename);
+        }
+    }
+
+    private void publish(Collection<CellAddress> changed) {
+        // called with the write lock held
+        Snapshot previous = current;
+        PersistentLongMap.Builder<CellValue> values = previous.values.toBuilder();
+        for (CellAddress address : changed) {
+            Cell cell = sheet.getCell(address.getRow(), address.getColumn());
+            if (cell == null || cell.isBlank()) {
+                values.remove(address.pack());
+            } else {
+                values.put(address.pack(), CellValue.of(cell));
+            }
+        }
+        current = new Snapshot(values.build(), previous.version + 1);
+    }
+
+    private void publishAll() {
+        PersistentLongMap.Builder<CellValue> values = PersistentLongMap.<CellValue>empty().toBuilder();
+        sheet.forEachCell(cell -> {
+            if (!cell.isBlank()) {
+                values.put(cell.getAddress().pack(), CellValue.of(cell));
+            }
+        });
+        current = new Snapshot(values.build(), current.version + 1);
+    }
+
+    // Immutable view of the sheet at one published version.
+    public static final class Snapshot {
+        private final PersistentLongMap<CellValue> values;
+        private final long version;
+
+        private Snapshot(PersistentLongMap<CellValue> values, long version) {
+            this.values = values;
+            this.version = version;
+        }
+
+        public long getVersion() { return version; }
+
+        public int getCellCount() { return values.size(); }
+
+        public String getCellContent(String address) {
+            CellAddress parsed = CellAddress.parseA1(address);
+            return getCellContentRC(parsed.getRow(), parsed.getColumn());
+        }
+
+        public String getCellContentRC(int rowIndex, int columnIndex) {
+            CellValue value = values.get(CellAddress.pack(rowIndex, columnIndex));
+            return (value == null) ? "" : value.content;
+        }
+
+        public String getCellDisplayValue(String address) {
+            CellAddress parsed = CellAddress.parseA1(address);
+            return getCellDisplayValueRC(parsed.getRow(), parsed.getColumn());
+        }
+
+        public String getCellDisplayValueRC(int rowIndex, int columnIndex) {
+            CellValue value = values.get(CellAddress.pack(rowIndex, columnIndex));
+            return (value == null) ? "" : value.display;
+        }
+
+        public boolean isCellError(String address) {
+            CellAddress parsed = CellAddress.parseA1(address);
+            return isCellErrorRC(parsed.getRow(), parsed.getColumn());
+        }
+
+        public boolean isCellErrorRC(int rowIndex, int columnIndex) {
+            CellValue value = values.get(CellAddress.pack(rowIndex, columnIndex));
+            return value != null && value.error;
+        }
+    }
+
+    private static final class CellValue {
+        private final String content;
+        private final String display;
+        private final boolean error;
+
+        private CellValue(String content, String display, boolean error) {
+            this.content = content;
+            this.display = display;
+            this.error = error;
+        }
+
+        static CellValue of(Cell cell) {
+            return new CellValue(cell.getContent(), cell.getDisplayValue(), cell.isError());
+        }
+    }
+}
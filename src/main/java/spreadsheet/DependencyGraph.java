@@ -0,0 +1,203 @@
+package spreadsheet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Dependency graph between cells.
+// Single references are kept as plain edges, ranges are kept as rectangles in a RangeIndex,
+// so "who depends on X" is a map lookup plus a spatial query and a range costs one entry.
+// The maps are PersistentLongMap builders keyed by CellAddress.pack(), so fork() is O(1).
+// Input sets and lists are never changed once stored; a dependents set is changed in place
+// only by the graph version that made it and copied first otherwise, so after a fork each
+// side pays for the entries it changes, not for the whole graph.
+
+final class DependencyGraph {
+    private PersistentLongMap.Builder<Set<CellAddress>> cellInputs;
+    private PersistentLongMap.Builder<List<RangeBounds>> rangeInputs;
+    private PersistentLongMap.Builder<Dependents> dependents;
+    private final RangeIndex rangeDependents;
+    // tags the dependents sets this version may change, replaced on every fork
+    private Object owner = new Object();
+
+    DependencyGraph() {
+        this.cellInputs = PersistentLongMap.<Set<CellAddress>>empty().toBuilder();
+        this.rangeInputs = PersistentLongMap.<List<RangeBounds>>empty().toBuilder();
+        this.dependents = PersistentLongMap.<Dependents>empty().toBuilder();
+        this.rangeDependents = new RangeIndex();
+    }
+
+    private DependencyGraph(DependencyGraph parent) {
+        this.cellInputs = parent.cellInputs.build().toBuilder();
+        this.rangeInputs = parent.rangeInputs.build().toBuilder();
+        this.dependents = parent.dependents.build().toBuilder();
+        this.rangeDependents = parent.rangeDependents.fork();
+    }
+
+    DependencyGraph fork() {
+        // same edges, changed independently from here on; build() leaves the parent's
+        // builders unable to touch the nodes both sides now share
+        DependencyGraph fork = new DependencyGraph(this);
+        owner = new Object();
+        return fork;
+    }
+
+    Set<CellAddress> addressesWithInputs() {
+        Set<CellAddress> result = new HashSet<>();
+        cellInputs.forEach((key, cells) -> result.add(CellAddress.unpack(key)));
+        rangeInputs.forEach((key, ranges) -> result.add(CellAddress.unpack(key)));
+        return result;
+    }
+
+    boolean hasInputs(CellAddress address) {
+        long key = address.pack();
+        return cellInputs.get(key) != null || rangeInputs.get(key) != null;
+    }
+
+    Set<CellAddress> getCellInputs(CellAddress address) {
+        Set<CellAddress> cells = cellInputs.get(address.pack());
+        return (cells == null) ? Set.of() : cells;
+    }
+
+    List<RangeBounds> getRangeInputs(CellAddress address) {
+        List<RangeBounds> ranges = rangeInputs.get(address.pack());
+        return (ranges == null) ? List.of() : ranges;
+    }
+
+    void setInputs(CellAddress address, Set<CellAddress> cells, List<RangeBounds> ranges) {
+        // replaces the inputs of a cell, keeping the reverse edges in sync
+        removeInputs(address);
+
+        long key = address.pack();
+        if (!cells.isEmpty()) {
+            cellInputs.put(key, new HashSet<>(cells));
+            for (CellAddress input : cells) {
+                ownedDependents(input.pack()).add(address);
+            }
+        }
+        if (!ranges.isEmpty()) {
+            rangeInputs.put(key, new ArrayList<>(ranges));
+            for (RangeBounds range : ranges) {
+                rangeDependents.add(range, address);
+            }
+        }
+    }
+
+    void removeInputs(CellAddress address) {
+        long key = address.pack();
+        Set<CellAddress> oldCells = cellInputs.get(key);
+        if (oldCells != null) {
+            cellInputs.remove(key);
+            for (CellAddress input : oldCells) {
+                long inputKey = input.pack();
+                if (dependents.get(inputKey) != null) {
+                    Set<CellAddress> reverse = ownedDependents(inputKey);
+                    reverse.remove(address);
+                    if (reverse.isEmpty()) {
+                        dependents.remove(inputKey);
+                    }
+                }
+            }
+        }
+        List<RangeBounds> oldRanges = rangeInputs.get(key);
+        if (oldRanges != null) {
+            rangeInputs.remove(key);
+            for (RangeBounds range : oldRanges) {
+                rangeDependents.remove(range, address);
+            }
+        }
+    }
+
+    List<CellAddress> dependentsOf(CellAddress address) {
+        // cells that read this one directly, either by reference or through a range.
+        // A cell listed twice reads the address through two inputs; callers that count
+        // edges see the same multiplicity every time they ask.
+        List<CellAddress> result = new ArrayList<>();
+        Dependents direct = dependents.get(address.pack());
+        if (direct != null) {
+            result.addAll(direct.cells);
+        }
+        if (rangeDependents.size() > 0) {
+            rangeDependents.findContaining(address.getRow(), address.getColumn(), result);
+        }
+        return result;
+    }
+
+    boolean introducesCycle(CellAddress address, Set<CellAddress> cells, List<RangeBounds> ranges) {
+        // Checks the edge being added before the graph is touched.
+        // The graph is acyclic, so giving `address` these inputs closes a cycle exactly when
+        // one of them is `address` itself or something downstream of it. The walk is an
+        // explicit-stack DFS over dependents that stops at the first hit, so long chains
+        // cannot overflow the call stack and cells with no dependents cost nothing.
+        if (cells.isEmpty() && ranges.isEmpty()) {
+            return false;
+        }
+        if (readsFrom(address, cells, ranges)) {
+            return true;
+        }
+        List<CellAddress> first = dependentsOf(address);
+        if (first.isEmpty()) {
+            return false;
+        }
+
+        Deque<CellAddress> stack = new ArrayDeque<>(first);
+        Set<CellAddress> visited = new HashSet<>(first);
+        while (!stack.isEmpty()) {
+            CellAddress current = stack.pop();
+            if (readsFrom(current, cells, ranges)) {
+                return true;
+            }
+            for (CellAddress dependent : dependentsOf(current)) {
+                if (visited.add(dependent)) {
+                    stack.push(dependent);
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean readsFrom(CellAddress address, Set<CellAddress> cells, List<RangeBounds> ranges) {
+        if (cells.contains(address)) {
+            return true;
+        }
+        for (RangeBounds range : ranges) {
+            if (range.contains(address.getRow(), address.getColumn())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<CellAddress> ownedDependents(long key) {
+        // the dependents set of `key` that this version may change, copied first if it is shared
+        Dependents stored = dependents.get(key);
+        if (stored != null && stored.owner == owner) {
+            return stored.cells;
+        }
+        Set<CellAddress> cells = (stored == null) ? new HashSet<>() : new HashSet<>(stored.cells);
+        dependents.put(key, new Dependents(owner, cells));
+        return cells;
+    }
+
+    void clear() {
+        cellInputs = PersistentLongMap.<Set<CellAddress>>empty().toBuilder();
+        rangeInputs = PersistentLongMap.<List<RangeBounds>>empty().toBuilder();
+        dependents = PersistentLongMap.<Dependents>empty().toBuilder();
+        rangeDependents.clear();
+    }
+
+    private static final class Dependents {
+        private final Object owner;
+        private final Set<CellAddress> cells;
+
+        private Dependents(Object owner, Set<CellAddress> cells) {
+            this.owner = owner;
+            this.cells = cells;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package spreadsheet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// Write-ahead journal of cell edits on top of a binary snapshot, so persisting an edit costs
+// a few bytes instead of a full save. Files: <base>.snapshot and <base>.journal.
+//
+// Every successful setCellContent / applyEdits on the attached sheet is appended as one record
+// (length, CRC32, then the edits). Records are buffered and written with a single fsync per
+// group: when syncEvery edits are pending, when the oldest pending edit is older than
+// syncIntervalMillis at the next append, or on sync() / close(). There is no timer, so the
+// edits made just before a sheet goes idle stay unsynced until the next edit, sync() or close().
+// Edits after the last sync can be lost in a crash, never reordered; a torn record at the end of
+// the file is cut off on open.
+//
+// The sheet records an edit after applying it. When writing the journal fails, the edit call
+// throws UncheckedIOException with the edit still applied in memory; it is not rolled back,
+// since the failure may come after the record was buffered or written (or from compaction).
+//
+// compact() writes a fresh snapshot and starts an empty journal; it runs on its own once the
+// journal grows past compactionBytes, and after a whole-sheet load. The snapshot and the journal
+// both carry a generation number. A crash between replacing the snapshot and replacing the
+// journal leaves an older journal behind, which open() recognizes and drops instead of replaying
+// edits the snapshot already contains.
+
+public final class EditJournal implements Closeable {
+    private static final int MAGIC = 0x53324A4C; // "S2JL"
+    private static final int HEADER_BYTES = 12;
+
+    private final Spreadsheet sheet;
+    private final Path snapshotPath;
+    private final Path journalPath;
+    private FileChannel channel;
+    private long generation;
+    private long journalBytes;
+
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private int pendingEdits;
+    private long oldestPendingMillis;
+
+    // kept off the public API of this class
+    private final EditLog log = new EditLog() {
+        public void record(Map<CellAddress, String> edits) {
+            EditJournal.this.record(edits);
+        }
+
+        public void compact() throws IOException {
+            EditJournal.this.compact();
+        }
+    };
+
+    private int syncEvery = 64;
+    private long syncIntervalMillis = 50;
+    private long compactionBytes = 64L << 20;
+
+    private EditJournal(Spreadsheet sheet, Path base) {
+        this.sheet = sheet;
+        this.snapshotPath = Paths.get(base + ".snapshot");
+        this.journalPath = Paths.get(base + ".journal");
+    }
+
+    public static EditJournal open(Path base, Spreadsheet sheet) throws IOException {
+        // Restores the sheet from the last snapshot plus the journal, then records its edits.
+        // Without a snapshot the sheet starts empty. Whatever the sheet held before is replaced.
+        if (sheet.isReadOnly()) {
+            throw new UnsupportedOperationException("Cannot journal a read-only snapshot");
+        }
+        EditJournal journal = new EditJournal(sheet, base);
+        journal.restore();
+        sheet.setEditLog(journal.log);
+        return journal;
+    }
+
+    public synchronized void setSyncEvery(int edits) {
+        // 1 makes every edit durable before the edit call returns
+        if (edits < 1) {
+            throw new IllegalArgumentException("Sync batch must be at least 1: " + edits);
+        }
+        syncEvery = edits;
+    }
+
+    public synchronized void setSyncIntervalMillis(long millis) {
+        syncIntervalMillis = millis;
+    }
+
+    public synchronized void setCompactionBytes(long bytes) {
+        compactionBytes = bytes;
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    public synchronized long getJournalBytes() {
+        // bytes in the journal file, including edits not yet synced
+        return journalBytes + pending.size();
+    }
+
+    private synchronized void record(Map<CellAddress, String> edits) {
+        // called by the sheet after the edits were applied, see the class comment on failures
+        try {
+            if (pendingEdits == 0) {
+                oldestPendingMillis = System.currentTimeMillis();
+            }
+            writeRecord(edits);
+            pendingEdits += edits.size();
+            if (pendingEdits >= syncEvery
+                || System.currentTimeMillis() - oldestPendingMillis >= syncIntervalMillis) {
+                sync();
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException("Could not journal edit", ex);
+        }
+    }
+
+    public synchronized void sync() throws IOException {
+        // one write and one fsync for every edit appended since the last sync
+        if (pending.size() > 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+            journalBytes += pending.size();
+            pending.reset();
+        }
+        pendingEdits = 0;
+        if (journalBytes >= compactionBytes) {
+            compact();
+        }
+    }
+
+    public synchronized void compact() throws IOException {
+        // New snapshot first, then a new journal, each written aside and moved into place,
+        // so either file on disk is always complete.
+        long next = generation + 1;
+        Path snapshotTemp = Paths.get(snapshotPath + ".tmp");
+        sheet.saveSnapshot(snapshotTemp, next);
+        force(snapshotTemp);
+        Files.move(snapshotTemp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        generation = next;
+        pending.reset();
+        pendingEdits = 0;
+
+        Path journalTemp = Paths.get(journalPath + ".tmp");
+        writeHeader(journalTemp, next);
+        if (channel != null) {
+            channel.close();
+        }
+        Files.move(journalTemp, journalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openForAppend();
+    }
+
+    public synchronized void close() throws IOException {
+        // syncs what is pending and detaches the journal from the sheet
+        try {
+            sync();
+        } finally {
+            sheet.setEditLog(null);
+            channel.close();
+        }
+    }
+
+    private void restore() throws IOException {
+        if (Files.exists(snapshotPath)) {
+            generation = sheet.loadSnapshot(snapshotPath);
+        } else {
+            sheet.loadFromS2vString("");
+            generation = 0L;
+        }
+        if (Files.exists(journalPath)) {
+            replay();
+        } else {
+            writeHeader(journalPath, generation);
+        }
+        openForAppend();
+    }
+
+    private void replay() throws IOException {
+        // the journal stays below compactionBytes, so it is read in one piece
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(journalPath));
+        if (data.remaining() < HEADER_BYTES) {
+            // crashed while the journal was being created
+            writeHeader(journalPath, generation);
+            return;
+        }
+        if (data.getInt() != MAGIC) {
+            throw new IOException("Not an edit journal: " + journalPath);
+        }
+        long journalGeneration = data.getLong();
+        if (journalGeneration > generation) {
+            throw new IOException("Journal generation " + journalGeneration
+                + " is newer than snapshot generation " + generation);
+        }
+        if (journalGeneration < generation) {
+            // the snapshot already contains these edits, see the class comment
+            writeHeader(journalPath, generation);
+            return;
+        }
+        Map<CellAddress, String> edits;
+        while ((edits = readRecord(data)) != null) {
+            // the journal is attached only after replay, so nothing is recorded twice.
+            // A batch that failed when it was made was never journaled, so none fail here.
+            sheet.applyEdits(edits);
+        }
+        if (data.hasRemaining()) {
+            // drop a torn record so later appends follow the last complete one
+            try (FileChannel file = FileChannel.open(journalPath, StandardOpenOption.WRITE)) {
+                file.truncate(data.position());
+                file.force(false);
+            }
+        }
+    }
+
+    private static Map<CellAddress, String> readRecord(ByteBuffer data) {
+        // Null at the end of the journal or at a torn or damaged record, with the position left
+        // at the start of that record; otherwise the position moves past the record.
+        int start = data.position();
+        if (data.remaining() < 8) {
+            return null;
+        }
+        int length = data.getInt();
+        int checksum = data.getInt();
+        if (length < 4 || length > data.remaining()) {
+            data.position(start);
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), data.position(), length);
+        if ((int) crc.getValue() != checksum) {
+            data.position(start);
+            return null;
+        }
+        int count = data.getInt();
+        Map<CellAddress, String> edits = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            CellAddress address = new CellAddress(data.getInt(), data.getInt());
+            byte[] content = new byte[data.getInt()];
+            data.get(content);
+            edits.put(address, new String(content, StandardCharsets.UTF_8));
+        }
+        return edits;
+    }
+
+    private void writeRecord(Map<CellAddress, String> edits) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(bytes);
+        payload.writeInt(edits.size());
+        for (Map.Entry<CellAddress, String> edit : edits.entrySet()) {
+            payload.writeInt(edit.getKey().getRow());
+            payload.writeInt(edit.getKey().getColumn());
+            byte[] content = (edit.getValue() == null ? "" : edit.getValue()).getBytes(StandardCharsets.UTF_8);
+            payload.writeInt(content.length);
+            payload.write(content);
+        }
+        byte[] data = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        DataOutputStream out = new DataOutputStream(pending);
+        out.writeInt(data.length);
+        out.writeInt((int) crc.getValue());
+        out.write(data);
+    }
+
+    private void openForAppend() throws IOException {
+        channel = FileChannel.open(journalPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalBytes = channel.size();
+    }
+
+    private static void writeHeader(Path path, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putLong(generation).flip();
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                file.write(header);
+            }
+            file.force(false);
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.force(true);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Receives the edits of a sheet once they succeeded. Set by EditJournal.open and null otherwise,
+// so builds that never open a journal (TeaVM) do not reach its file I/O.
+
+interface EditLog {
+    void record(Map<CellAddress, String> edits);
+
+    // called after a load replaced the whole sheet
+    void compact() throws IOException;
+}
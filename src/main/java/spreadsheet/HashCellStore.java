@@ -0,0 +1,91 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Default store: one LongMap entry per cell.
+
+final class HashCellStore implements CellStore {
+    private static final Comparator<Cell> ROW_MAJOR = Comparator
+            .comparingInt((Cell cell) -> cell.getAddress().getRow())
+            .thenComparingInt(cell -> cell.getAddress().getColumn());
+
+    private final LongMap<Cell> cells;
+
+    HashCellStore() {
+        this(new LongMap<>());
+    }
+
+    private HashCellStore(LongMap<Cell> cells) {
+        this.cells = cells;
+    }
+
+    public Cell get(int row, int column) {
+        return cells.get(CellAddress.pack(row, column));
+    }
+
+    public void put(Cell cell) {
+        cells.put(cell.getAddress().pack(), cell);
+    }
+
+    public Cell remove(int row, int column) {
+        return cells.remove(CellAddress.pack(row, column));
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    public void forEach(Consumer<Cell> action) {
+        cells.forEach((key, cell) -> action.accept(cell));
+    }
+
+    public void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+        // row by row, like the original range loop. When the range is much larger than the
+        // sheet (SUM(A1:A1000000) over a few cells) the occupied cells are filtered instead.
+        long area = (long) bounds.getHeight() * bounds.getWidth();
+        if (area > 2L * cells.size()) {
+            List<Cell> inRange = new ArrayList<>();
+            cells.forEach((key, cell) -> {
+                if (bounds.contains(CellAddress.unpackRow(key), CellAddress.unpackColumn(key))) {
+                    inRange.add(cell);
+                }
+            });
+            inRange.sort(ROW_MAJOR);
+            for (Cell cell : inRange) {
+                if (!cell.isBlank()) {
+                    consumer.accept(cell.evaluateNumericValue());
+                }
+            }
+            return;
+        }
+        for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
+            for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
+                Cell cell = cells.get(CellAddress.pack(r, c));
+                if (cell != null && !cell.isBlank()) {
+                    consumer.accept(cell.evaluateNumericValue());
+                }
+            }
+        }
+    }
+
+    public void readColumn(int firstRow, int column, double[] out) {
+        for (int i = 0; i < out.length; i++) {
+            Cell cell = cells.get(CellAddress.pack(firstRow + i, column));
+            out[i] = (cell == null) ? 0.0 : cell.evaluateNumericValue();
+        }
+    }
+
+    public CellStore fork() {
+        return new HashCellStore(cells.copy());
+    }
+
+    public void clear() {
+        cells.clear();
+    }
+}
@@ -0,0 +1,213 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Open-addressing hash map from primitive long keys to objects.
+// Used with packed cell keys (see CellAddress.pack) so cell lookups neither allocate
+// a CellAddress nor box a Long. Linear probing with backward-shift deletion, no tombstones.
+
+final class LongMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    private static final long EMPTY = 0L;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int shift;
+    // key 0 doubles as the empty-slot marker, so it is stored on the side
+    private boolean hasZeroKey;
+    private Object zeroValue;
+
+    LongMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        if (key == EMPTY) {
+            return hasZeroKey ? (V) zeroValue : null;
+        }
+        int slot = slotFor(key);
+        while (true) {
+            long current = keys[slot];
+            if (current == key) {
+                return (V) values[slot];
+            }
+            if (current == EMPTY) {
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    boolean containsKey(long key) {
+        if (key == EMPTY) {
+            return hasZeroKey;
+        }
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (key == EMPTY) {
+            V previous = (V) zeroValue;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                size++;
+            }
+            zeroValue = value;
+            return previous;
+        }
+        int slot = slotFor(key);
+        while (true) {
+            long current = keys[slot];
+            if (current == key) {
+                V previous = (V) values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            if (current == EMPTY) {
+                keys[slot] = key;
+                values[slot] = value;
+                size++;
+                if (size * 4 > keys.length * 3) {
+                    allocate(keys.length * 2);
+                }
+                return null;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    V remove(long key) {
+        if (key == EMPTY) {
+            if (!hasZeroKey) {
+                return null;
+            }
+            V previous = (V) zeroValue;
+            hasZeroKey = false;
+            zeroValue = null;
+            size--;
+            return previous;
+        }
+        int slot = slotFor(key);
+        while (true) {
+            long current = keys[slot];
+            if (current == EMPTY) {
+                return null;
+            }
+            if (current == key) {
+                V previous = (V) values[slot];
+                shiftBack(slot);
+                size--;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    LongMap<V> copy() {
+        // Copies the table as it is. Putting the entries into a new map one by one is quadratic:
+        // they come out in slot order and pile up at the front of the smaller table being grown.
+        LongMap<V> copy = new LongMap<>();
+        copy.keys = Arrays.copyOf(keys, keys.length);
+        copy.values = Arrays.copyOf(values, values.length);
+        copy.size = size;
+        copy.mask = mask;
+        copy.shift = shift;
+        copy.hasZeroKey = hasZeroKey;
+        copy.zeroValue = zeroValue;
+        return copy;
+    }
+
+    void clear() {
+        keys = null;
+        values = null;
+        allocate(MIN_CAPACITY);
+        size = 0;
+        hasZeroKey = false;
+        zeroValue = null;
+    }
+
+    @SuppressWarnings("unchecked")
+    void forEach(Visitor<V> visitor) {
+        // the map must not be modified while it is being visited
+        if (hasZeroKey) {
+            visitor.visit(EMPTY, (V) zeroValue);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                visitor.visit(keys[i], (V) values[i]);
+            }
+        }
+    }
+
+    List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        forEach((key, value) -> result.add(value));
+        return result;
+    }
+
+    private void shiftBack(int slot) {
+        // close the gap so later probes in the same run still find their keys
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (keys[next] != EMPTY) {
+            int home = slotFor(keys[next]);
+            // move the entry if its home slot is not in the (gap, next] window
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+    }
+
+    private int slotFor(long key) {
+        // Fibonacci hashing spreads row/column bits over the whole table
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private void allocate(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+
+        if (oldKeys != null) {
+            for (int i = 0; i < oldKeys.length; i++) {
+                long key = oldKeys[i];
+                if (key != EMPTY) {
+                    int slot = slotFor(key);
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = key;
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+}
@@ -0,0 +1,98 @@
+package spreadsheet;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import spreadsheet.formula.eval.CellLookup;
+
+// Fork/join scheduler: each level is split into slices evaluated on a dedicated pool and the
+// next level starts only when the whole level is done. A cell only reads inputs from earlier
+// levels, which are complete (and visible, through the join) by then, so results do not
+// depend on the interleaving. Small levels run on the calling thread.
+// JVM only; Spreadsheet.setRecalculationParallelism is never called by the web build.
+// A sheet and its forks share one scheduler; the pool shuts down when the last of them closes
+// it. Forks are not closed explicitly, so a pool may outlive its users, but its idle worker
+// threads exit on their own.
+
+final class ParallelRecalculationScheduler implements RecalculationScheduler {
+    // below this many cells a level is not worth handing to other threads
+    private static final int MIN_PARALLEL_CELLS = 256;
+    private static final int SLICE_CELLS = 64;
+
+    private final ForkJoinPool pool;
+    private int users = 1;
+
+    ParallelRecalculationScheduler(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public int run(List<List<CellRun>> levels, CellStore cells, CellLookup lookup) {
+        int count = 0;
+        for (List<CellRun> level : levels) {
+            if (level.size() == 1 || cellCount(level) < MIN_PARALLEL_CELLS) {
+                for (CellRun unit : level) {
+                    count += unit.evaluate(cells, lookup);
+                }
+            } else {
+                count += pool.invoke(new LevelSlice(level, 0, level.size(), cells, lookup));
+            }
+        }
+        return count;
+    }
+
+    public synchronized RecalculationScheduler share() {
+        users++;
+        return this;
+    }
+
+    public synchronized void close() {
+        if (--users == 0) {
+            pool.shutdown();
+        }
+    }
+
+    private static int cellCount(List<CellRun> level) {
+        int total = 0;
+        for (CellRun unit : level) {
+            total += unit.size();
+            if (total >= MIN_PARALLEL_CELLS) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private static final class LevelSlice extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<CellRun> level;
+        private final int from;
+        private final int to;
+        private final CellStore cells;
+        private final CellLookup lookup;
+
+        private LevelSlice(List<CellRun> level, int from, int to, CellStore cells, CellLookup lookup) {
+            this.level = level;
+            this.from = from;
+            this.to = to;
+            this.cells = cells;
+            this.lookup = lookup;
+        }
+
+        protected Integer compute() {
+            if (to - from <= SLICE_CELLS) {
+                int count = 0;
+                for (int i = from; i < to; i++) {
+                    count += level.get(i).evaluate(cells, lookup);
+                }
+                return count;
+            }
+            int middle = (from + to) >>> 1;
+            LevelSlice left = new LevelSlice(level, from, middle, cells, lookup);
+            left.fork();
+            int right = new LevelSlice(level, middle, to, cells, lookup).compute();
+            return left.join() + right;
+        }
+    }
+}
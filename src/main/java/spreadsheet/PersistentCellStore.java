@@ -0,0 +1,99 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Store for sheets that get forked: cells live in a persistent trie, so fork() freezes the
+// current version and hands both sides a builder over it in O(1). Each side then copies only
+// the trie paths it changes; everything else stays shared.
+
+final class PersistentCellStore implements CellStore {
+    private static final Comparator<Cell> ROW_MAJOR = Comparator
+            .comparingInt((Cell cell) -> cell.getAddress().getRow())
+            .thenComparingInt(cell -> cell.getAddress().getColumn());
+
+    private PersistentLongMap.Builder<Cell> cells;
+
+    PersistentCellStore() {
+        this(PersistentLongMap.<Cell>empty().toBuilder());
+    }
+
+    private PersistentCellStore(PersistentLongMap.Builder<Cell> cells) {
+        this.cells = cells;
+    }
+
+    public Cell get(int row, int column) {
+        return cells.get(CellAddress.pack(row, column));
+    }
+
+    public void put(Cell cell) {
+        cells.put(cell.getAddress().pack(), cell);
+    }
+
+    public Cell remove(int row, int column) {
+        long key = CellAddress.pack(row, column);
+        Cell removed = cells.get(key);
+        if (removed != null) {
+            cells.remove(key);
+        }
+        return removed;
+    }
+
+    public int size() {
+        return cells.size();
+    }
+
+    public void forEach(Consumer<Cell> action) {
+        cells.forEach((key, cell) -> action.accept(cell));
+    }
+
+    public void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+        // same strategy as HashCellStore: probe small ranges, filter the cells for huge ones
+        long area = (long) bounds.getHeight() * bounds.getWidth();
+        if (area > 2L * cells.size()) {
+            List<Cell> inRange = new ArrayList<>();
+            cells.forEach((key, cell) -> {
+                if (bounds.contains(CellAddress.unpackRow(key), CellAddress.unpackColumn(key))) {
+                    inRange.add(cell);
+                }
+            });
+            inRange.sort(ROW_MAJOR);
+            for (Cell cell : inRange) {
+                if (!cell.isBlank()) {
+                    consumer.accept(cell.evaluateNumericValue());
+                }
+            }
+            return;
+        }
+        for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
+            for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
+                Cell cell = cells.get(CellAddress.pack(r, c));
+                if (cell != null && !cell.isBlank()) {
+                    consumer.accept(cell.evaluateNumericValue());
+                }
+            }
+        }
+    }
+
+    public void readColumn(int firstRow, int column, double[] out) {
+        for (int i = 0; i < out.length; i++) {
+            Cell cell = cells.get(CellAddress.pack(firstRow + i, column));
+            out[i] = (cell == null) ? 0.0 : cell.evaluateNumericValue();
+        }
+    }
+
+    public CellStore fork() {
+        PersistentLongMap<Cell> frozen = cells.build();
+        cells = frozen.toBuilder();
+        return new PersistentCellStore(frozen.toBuilder());
+    }
+
+    public void clear() {
+        cells = PersistentLongMap.<Cell>empty().toBuilder();
+    }
+}
@@ -0,0 +1,291 @@
+package spreadsheet;
+
+import java.util.Arrays;
+
+// Immutable hash array mapped trie from packed cell keys to values.
+// put/remove return a new map that shares every untouched node with the old one, so a version
+// costs O(log32 n) new nodes per change and old versions stay valid for readers holding them.
+// Keys are spread with a multiply by an odd constant, which is a bijection on longs: distinct
+// keys always have distinct hashes, so the trie needs no collision nodes.
+// A Builder batches many changes, mutating the nodes it created itself in place.
+
+final class PersistentLongMap<V> {
+    private static final int BITS = 5;
+    private static final int MASK = (1 << BITS) - 1;
+    private static final PersistentLongMap<Object> EMPTY = new PersistentLongMap<>(null, 0);
+
+    private final Node root;
+    private final int size;
+
+    private PersistentLongMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> PersistentLongMap<V> empty() {
+        return (PersistentLongMap<V>) EMPTY;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    V get(long key) {
+        return lookup(root, key);
+    }
+
+    PersistentLongMap<V> put(long key, V value) {
+        Change change = new Change();
+        Node updated = insert(root, 0, hash(key), key, value, null, change);
+        if (updated == root) {
+            return this;
+        }
+        return new PersistentLongMap<>(updated, size + (change.added ? 1 : 0));
+    }
+
+    PersistentLongMap<V> remove(long key) {
+        Change change = new Change();
+        Node updated = delete(root, 0, hash(key), key, null, change);
+        if (!change.removed) {
+            return this;
+        }
+        return new PersistentLongMap<>(updated, size - 1);
+    }
+
+    void forEach(LongMap.Visitor<V> visitor) {
+        visit(root, visitor);
+    }
+
+    Builder<V> toBuilder() {
+        return new Builder<>(root, size);
+    }
+
+    static final class Builder<V> {
+        private Node root;
+        private int size;
+        // nodes tagged with this token were created by the builder and may be changed in place
+        private Object edit = new Object();
+
+        private Builder(Node root, int size) {
+            this.root = root;
+            this.size = size;
+        }
+
+        V get(long key) {
+            return lookup(root, key);
+        }
+
+        int size() {
+            return size;
+        }
+
+        void forEach(LongMap.Visitor<V> visitor) {
+            visit(root, visitor);
+        }
+
+        Builder<V> put(long key, V value) {
+            Change change = new Change();
+            root = insert(root, 0, hash(key), key, value, edit, change);
+            if (change.added) {
+                size++;
+            }
+            return this;
+        }
+
+        Builder<V> remove(long key) {
+            Change change = new Change();
+            root = delete(root, 0, hash(key), key, edit, change);
+            if (change.removed) {
+                size--;
+            }
+            return this;
+        }
+
+        PersistentLongMap<V> build() {
+            // the built map must never change: later edits get a fresh token
+            edit = new Object();
+            return new PersistentLongMap<>(root, size);
+        }
+    }
+
+    private static long hash(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    private static int index(long hash, int shift) {
+        return (int) (hash >>> shift) & MASK;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> V lookup(Node node, long key) {
+        long hash = hash(key);
+        int shift = 0;
+        while (node != null) {
+            int bit = 1 << index(hash, shift);
+            if ((node.bitmap & bit) == 0) {
+                return null;
+            }
+            Object slot = node.array[Integer.bitCount(node.bitmap & (bit - 1))];
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                return (leaf.key == key) ? (V) leaf.value : null;
+            }
+            node = (Node) slot;
+            shift += BITS;
+        }
+        return null;
+    }
+
+    private static Node insert(Node node, int shift, long hash, long key, Object value, Object edit, Change change) {
+        if (node == null) {
+            change.added = true;
+            return new Node(edit, 1 << index(hash, shift), new Object[] {new Leaf(key, value)});
+        }
+        int bit = 1 << index(hash, shift);
+        int position = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            change.added = true;
+            Object[] array = new Object[node.array.length + 1];
+            System.arraycopy(node.array, 0, array, 0, position);
+            array[position] = new Leaf(key, value);
+            System.arraycopy(node.array, position, array, position + 1, node.array.length - position);
+            return withArray(node, edit, node.bitmap | bit, array);
+        }
+        Object slot = node.array[position];
+        if (slot instanceof Leaf) {
+            Leaf leaf = (Leaf) slot;
+            if (leaf.key == key) {
+                if (leaf.value == value) {
+                    return node;
+                }
+                return withSlot(node, edit, position, new Leaf(key, value));
+            }
+            change.added = true;
+            Node split = pair(shift + BITS, hash(leaf.key), leaf, hash, new Leaf(key, value), edit);
+            return withSlot(node, edit, position, split);
+        }
+        Node child = (Node) slot;
+        Node updated = insert(child, shift + BITS, hash, key, value, edit, change);
+        return (updated == child) ? node : withSlot(node, edit, position, updated);
+    }
+
+    private static Node delete(Node node, int shift, long hash, long key, Object edit, Change change) {
+        // returns null when the node becomes empty
+        if (node == null) {
+            return null;
+        }
+        int bit = 1 << index(hash, shift);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int position = Integer.bitCount(node.bitmap & (bit - 1));
+        Object slot = node.array[position];
+        Object replacement;
+        if (slot instanceof Leaf) {
+            if (((Leaf) slot).key != key) {
+                return node;
+            }
+            change.removed = true;
+            replacement = null;
+        } else {
+            Node child = (Node) slot;
+            Node updated = delete(child, shift + BITS, hash, key, edit, change);
+            if (updated == child) {
+                return node;
+            }
+            // a child left with a single leaf is folded back so the trie stays minimal
+            if (updated != null && updated.array.length == 1 && updated.array[0] instanceof Leaf) {
+                replacement = updated.array[0];
+            } else {
+                replacement = updated;
+            }
+        }
+        if (replacement != null) {
+            return withSlot(node, edit, position, replacement);
+        }
+        if (node.array.length == 1) {
+            return null;
+        }
+        Object[] array = new Object[node.array.length - 1];
+        System.arraycopy(node.array, 0, array, 0, position);
+        System.arraycopy(node.array, position + 1, array, position, array.length - position);
+        return withArray(node, edit, node.bitmap & ~bit, array);
+    }
+
+    private static Node pair(int shift, long hash1, Leaf leaf1, long hash2, Leaf leaf2, Object edit) {
+        int index1 = index(hash1, shift);
+        int index2 = index(hash2, shift);
+        if (index1 == index2) {
+            return new Node(edit, 1 << index1, new Object[] {pair(shift + BITS, hash1, leaf1, hash2, leaf2, edit)});
+        }
+        Object[] array = (index1 < index2) ? new Object[] {leaf1, leaf2} : new Object[] {leaf2, leaf1};
+        return new Node(edit, (1 << index1) | (1 << index2), array);
+    }
+
+    private static Node withSlot(Node node, Object edit, int position, Object slot) {
+        if (edit != null && node.edit == edit) {
+            node.array[position] = slot;
+            return node;
+        }
+        Object[] array = Arrays.copyOf(node.array, node.array.length);
+        array[position] = slot;
+        return new Node(edit, node.bitmap, array);
+    }
+
+    private static Node withArray(Node node, Object edit, int bitmap, Object[] array) {
+        if (edit != null && node.edit == edit) {
+            node.bitmap = bitmap;
+            node.array = array;
+            return node;
+        }
+        return new Node(edit, bitmap, array);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <V> void visit(Node node, LongMap.Visitor<V> visitor) {
+        if (node == null) {
+            return;
+        }
+        for (Object slot : node.array) {
+            if (slot instanceof Leaf) {
+                Leaf leaf = (Leaf) slot;
+                visitor.visit(leaf.key, (V) leaf.value);
+            } else {
+                visit((Node) slot, visitor);
+            }
+        }
+    }
+
+    private static final class Node {
+        // token of the Builder that created the node, null for nodes made by put/remove
+        private final Object edit;
+        private int bitmap;
+        private Object[] array;
+
+        private Node(Object edit, int bitmap, Object[] array) {
+            this.edit = edit;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+    }
+
+    private static final class Leaf {
+        private final long key;
+        private final Object value;
+
+        private Leaf(long key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class Change {
+        private boolean added;
+        private boolean removed;
+    }
+}
@@ -0,0 +1,169 @@
+package spreadsheet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import spreadsheet.formula.ast.RangeBounds;
+
+// Spatial index of range dependencies ("C1 reads A1:A100000").
+// Works like a loose quadtree: a range whose larger side fits in 2^level cells is stored once,
+// in the bucket of the level-sized block holding its top-left corner. Such a range can only
+// reach into that block and its right/lower neighbours, so a point query probes four buckets
+// per level that is in use.
+// Levels are PersistentLongMap builders and a bucket is copied before a change unless this
+// index made it, so fork() is O(LEVELS) and both sides share every bucket neither changes.
+
+final class RangeIndex {
+    private static final int LEVELS = 32;
+
+    private final PersistentLongMap.Builder<Bucket>[] buckets = newBuckets();
+    private int usedLevels;
+    private int size;
+    // tags the buckets this index may change, replaced on every fork
+    private Object owner = new Object();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static PersistentLongMap.Builder<Bucket>[] newBuckets() {
+        // Java cannot create a generic array; every slot is only ever set to a Builder<Bucket>
+        return new PersistentLongMap.Builder[LEVELS];
+    }
+
+    RangeIndex fork() {
+        RangeIndex fork = new RangeIndex();
+        for (int level = 0; level < LEVELS; level++) {
+            if (buckets[level] != null) {
+                fork.buckets[level] = buckets[level].build().toBuilder();
+            }
+        }
+        fork.usedLevels = usedLevels;
+        fork.size = size;
+        owner = new Object();
+        return fork;
+    }
+
+    void add(RangeBounds bounds, CellAddress dependent) {
+        int level = levelFor(bounds);
+        PersistentLongMap.Builder<Bucket> levelBuckets = buckets[level];
+        if (levelBuckets == null) {
+            levelBuckets = PersistentLongMap.<Bucket>empty().toBuilder();
+            buckets[level] = levelBuckets;
+            usedLevels |= 1 << level;
+        }
+        long key = blockKey(bounds.getRowMin() >> level, bounds.getColMin() >> level);
+        ownedEntries(levelBuckets, key).add(new Entry(bounds, dependent));
+        size++;
+    }
+
+    void remove(RangeBounds bounds, CellAddress dependent) {
+        int level = levelFor(bounds);
+        PersistentLongMap.Builder<Bucket> levelBuckets = buckets[level];
+        if (levelBuckets == null) {
+            return;
+        }
+        long key = blockKey(bounds.getRowMin() >> level, bounds.getColMin() >> level);
+        if (levelBuckets.get(key) == null) {
+            return;
+        }
+        List<Entry> entries = ownedEntries(levelBuckets, key);
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.dependent.equals(dependent) && entry.bounds.equals(bounds)) {
+                entries.remove(i);
+                size--;
+                break;
+            }
+        }
+        if (entries.isEmpty()) {
+            levelBuckets.remove(key);
+            if (levelBuckets.size() == 0) {
+                buckets[level] = null;
+                usedLevels &= ~(1 << level);
+            }
+        }
+    }
+
+    void findContaining(int row, int column, List<CellAddress> out) {
+        // appends every dependent whose range contains (row, column)
+        int levels = usedLevels;
+        while (levels != 0) {
+            int level = Integer.numberOfTrailingZeros(levels);
+            levels &= levels - 1;
+
+            PersistentLongMap.Builder<Bucket> levelBuckets = buckets[level];
+            int rowBlock = row >> level;
+            int colBlock = column >> level;
+            for (int dr = 0; dr <= 1; dr++) {
+                for (int dc = 0; dc <= 1; dc++) {
+                    int r = rowBlock - dr;
+                    int c = colBlock - dc;
+                    if (r < 0 || c < 0) {
+                        continue;
+                    }
+                    Bucket bucket = levelBuckets.get(blockKey(r, c));
+                    if (bucket == null) {
+                        continue;
+                    }
+                    for (Entry entry : bucket.entries) {
+                        if (entry.bounds.contains(row, column)) {
+                            out.add(entry.dependent);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        for (int i = 0; i < LEVELS; i++) {
+            buckets[i] = null;
+        }
+        usedLevels = 0;
+        size = 0;
+    }
+
+    private List<Entry> ownedEntries(PersistentLongMap.Builder<Bucket> levelBuckets, long key) {
+        // the entries of a bucket that this index may change, copied first if they are shared
+        Bucket stored = levelBuckets.get(key);
+        if (stored != null && stored.owner == owner) {
+            return stored.entries;
+        }
+        List<Entry> entries = (stored == null) ? new ArrayList<>(2) : new ArrayList<>(stored.entries);
+        levelBuckets.put(key, new Bucket(owner, entries));
+        return entries;
+    }
+
+    private static int levelFor(RangeBounds bounds) {
+        // smallest level whose block side (2^level) covers the longer side of the range
+        int extent = Math.max(bounds.getHeight(), bounds.getWidth());
+        int level = 32 - Integer.numberOfLeadingZeros(extent - 1);
+        return Math.min(level, LEVELS - 1);
+    }
+
+    private static long blockKey(int rowBlock, int colBlock) {
+        return ((long) rowBlock << 32) | (colBlock & 0xFFFFFFFFL);
+    }
+
+    private static final class Bucket {
+        private final Object owner;
+        private final List<Entry> entries;
+
+        private Bucket(Object owner, List<Entry> entries) {
+            this.owner = owner;
+            this.entries = entries;
+        }
+    }
+
+    private static final class Entry {
+        private final RangeBounds bounds;
+        private final CellAddress dependent;
+
+        private Entry(RangeBounds bounds, CellAddress dependent) {
+            this.bounds = bounds;
+            this.dependent = dependent;
+        }
+    }
+}
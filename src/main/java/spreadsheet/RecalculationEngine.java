@@ -0,0 +1,348 @@
+package spreadsheet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.ast.RangeBounds;
+
+// Incremental recalculation after an edit.
+// The cells reachable through dependents are marked dirty, ordered into topological levels
+// with Kahn's algorithm and evaluated once each, so every input is already fresh when a cell
+// is recomputed. Runs of copied formulas down a column are ordered and evaluated as one unit
+// (see CellRun) when nothing inside a run reads another cell of the same run.
+// Levels are handed to a RecalculationScheduler, which may spread a level over threads.
+// In lazy mode the pass stops after ordering (which still rejects cycles): dirty cells are left
+// for evaluate(), which computes a cell and its dirty inputs when the cell is read.
+
+final class RecalculationEngine {
+    private static final Comparator<Cell> COLUMN_MAJOR = Comparator
+        .comparingInt((Cell cell) -> cell.getAddress().getColumn())
+        .thenComparingInt(cell -> cell.getAddress().getRow());
+
+    private final CellStore cells;
+    private final DependencyGraph dependencies;
+    // evaluation lookup, and the sheet that copies cells shared with a fork before marking them
+    private final Spreadsheet owner;
+    private RecalculationScheduler scheduler = RecalculationScheduler.SEQUENTIAL;
+    private int lastRecalculationCount;
+    private List<CellAddress> lastAffected = List.of();
+    private boolean lazy;
+    // formulas marked dirty by lazy passes; entries go stale once read or removed
+    private final Set<CellAddress> pending = new HashSet<>();
+
+    RecalculationEngine(CellStore cells, DependencyGraph dependencies, Spreadsheet owner) {
+        this.cells = cells;
+        this.dependencies = dependencies;
+        this.owner = owner;
+    }
+
+    void setScheduler(RecalculationScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    RecalculationScheduler getScheduler() {
+        return scheduler;
+    }
+
+    void setLazy(boolean lazy) {
+        if (!lazy) {
+            evaluatePending();
+        }
+        this.lazy = lazy;
+    }
+
+    boolean isLazy() {
+        return lazy;
+    }
+
+    int getLastRecalculationCount() {
+        return lastRecalculationCount;
+    }
+
+    List<CellAddress> getLastAffected() {
+        // roots and every cell recomputed by the last successful pass, including removed cells
+        return lastAffected;
+    }
+
+    int recalculateFrom(CellAddress start) {
+        return recalculate(List.of(start));
+    }
+
+    int recalculateAll() {
+        // single sweep over the whole sheet, used after bulk loading
+        List<CellAddress> roots = new ArrayList<>(cells.size());
+        cells.forEach(cell -> roots.add(cell.getAddress()));
+        return recalculate(roots);
+    }
+
+    int recalculate(Collection<CellAddress> roots) {
+        // throws FormulaException before anything is evaluated if the roots reach a cycle
+        Map<CellAddress, List<CellAddress>> edges = new HashMap<>();
+        List<CellAddress> affected = markAffected(roots, edges);
+
+        Map<CellAddress, CellRun> runs = findRuns(affected, edges);
+        List<List<CellRun>> levels = levelOrder(affected, edges, runs);
+        if (levels == null && !runs.isEmpty()) {
+            // runs that feed each other through outside cells; single cells still have an order
+            levels = levelOrder(affected, edges, Collections.emptyMap());
+        }
+        if (levels == null) {
+            // single edits reject cycles up front; bulk loads rely on this check
+            throw new FormulaException("Circular reference found");
+        }
+
+        int count = 0;
+        if (lazy) {
+            pending.addAll(affected);
+        } else {
+            count = scheduler.run(levels, cells, owner);
+        }
+        lastRecalculationCount = count;
+        lastAffected = affected;
+        return count;
+    }
+
+    void evaluate(Cell target) {
+        // Demand-driven evaluation of one dirty cell. Its dirty inputs are found by walking the
+        // graph backwards and computed in post-order with an explicit stack, so each formula only
+        // reads clean cells and long chains do not recurse through Cell.evaluateNumericValue.
+        Deque<Cell> stack = new ArrayDeque<>();
+        Set<CellAddress> visited = new HashSet<>();
+        Set<CellAddress> expanded = new HashSet<>();
+        stack.push(target);
+        visited.add(target.getAddress());
+        while (!stack.isEmpty()) {
+            Cell current = stack.peek();
+            if (expanded.add(current.getAddress())) {
+                for (Cell input : dirtyInputs(current.getAddress())) {
+                    if (visited.add(input.getAddress())) {
+                        stack.push(input);
+                    }
+                }
+            } else {
+                stack.pop();
+                current.recalculate();
+            }
+        }
+    }
+
+    void evaluatePending() {
+        // brings every cell left dirty by lazy passes up to date, e.g. before the sheet is forked.
+        // Walks a copy: evaluating a range reader drops the stale entries it finds from pending.
+        for (CellAddress address : new ArrayList<>(pending)) {
+            Cell cell = cells.get(address.getRow(), address.getColumn());
+            if (cell != null && cell.isDirty()) {
+                evaluate(cell);
+            }
+        }
+        pending.clear();
+    }
+
+    private List<Cell> dirtyInputs(CellAddress address) {
+        List<Cell> result = new ArrayList<>();
+        for (CellAddress input : dependencies.getCellInputs(address)) {
+            addIfDirty(input.getRow(), input.getColumn(), result);
+        }
+        for (RangeBounds range : dependencies.getRangeInputs(address)) {
+            long area = (long) range.getHeight() * range.getWidth();
+            if (area <= pending.size()) {
+                for (int r = range.getRowMin(); r <= range.getRowMax(); r++) {
+                    for (int c = range.getColMin(); c <= range.getColMax(); c++) {
+                        addIfDirty(r, c, result);
+                    }
+                }
+                continue;
+            }
+            // large range: only cells marked by a lazy pass can be dirty, look through those
+            Iterator<CellAddress> candidates = pending.iterator();
+            while (candidates.hasNext()) {
+                CellAddress candidate = candidates.next();
+                Cell cell = cells.get(candidate.getRow(), candidate.getColumn());
+                if (cell == null || !cell.isDirty()) {
+                    candidates.remove();
+                } else if (range.contains(candidate.getRow(), candidate.getColumn())) {
+                    result.add(cell);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void addIfDirty(int row, int column, List<Cell> out) {
+        Cell cell = cells.get(row, column);
+        if (cell != null && cell.isDirty()) {
+            out.add(cell);
+        }
+    }
+
+    private List<CellAddress> markAffected(Collection<CellAddress> roots,
+                                           Map<CellAddress, List<CellAddress>> edges) {
+        // BFS over dependents, marking every reachable cell dirty.
+        // The dependents of each visited cell are kept for the ordering pass.
+        Deque<CellAddress> queue = new ArrayDeque<>();
+        Set<CellAddress> visited = new HashSet<>();
+        List<CellAddress> affected = new ArrayList<>();
+
+        for (CellAddress root : roots) {
+            if (visited.add(root)) {
+                queue.add(root);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            CellAddress current = queue.removeFirst();
+            affected.add(current);
+            Cell cell = cells.get(current.getRow(), current.getColumn());
+            if (cell != null && cell.getFormula() != null) {
+                owner.ownedCell(cell).markDirty();
+            }
+            List<CellAddress> next = dependencies.dependentsOf(current);
+            edges.put(current, next);
+            for (CellAddress dependent : next) {
+                if (visited.add(dependent)) {
+                    queue.add(dependent);
+                }
+            }
+        }
+        return affected;
+    }
+
+    private Map<CellAddress, CellRun> findRuns(List<CellAddress> affected,
+                                              Map<CellAddress, List<CellAddress>> edges) {
+        // Vertically adjacent cells sharing a formula shape whose program can run in lanes.
+        // A run where one row reads another (running totals) is left to the per-cell path.
+        if (affected.size() < CellRun.MIN_LENGTH) {
+            return Collections.emptyMap();
+        }
+        List<Cell> candidates = new ArrayList<>();
+        for (CellAddress address : affected) {
+            Cell cell = cells.get(address.getRow(), address.getColumn());
+            if (cell != null && cell.getFormula() != null && cell.getFormula().getProgram().isVectorizable()) {
+                candidates.add(cell);
+            }
+        }
+        if (candidates.size() < CellRun.MIN_LENGTH) {
+            return Collections.emptyMap();
+        }
+        candidates.sort(COLUMN_MAJOR);
+
+        Map<CellAddress, CellRun> runs = new HashMap<>();
+        int start = 0;
+        for (int i = 1; i <= candidates.size(); i++) {
+            if (i < candidates.size() && continuesRun(candidates.get(i - 1), candidates.get(i))) {
+                continue;
+            }
+            if (i - start >= CellRun.MIN_LENGTH) {
+                addRun(candidates.subList(start, i), edges, runs);
+            }
+            start = i;
+        }
+        return runs;
+    }
+
+    private static boolean continuesRun(Cell previous, Cell next) {
+        CellAddress a = previous.getAddress();
+        CellAddress b = next.getAddress();
+        return a.getColumn() == b.getColumn()
+            && a.getRow() + 1 == b.getRow()
+            && previous.getFormula().getShape() == next.getFormula().getShape();
+    }
+
+    private static void addRun(List<Cell> members,
+                               Map<CellAddress, List<CellAddress>> edges,
+                               Map<CellAddress, CellRun> runs) {
+        Set<CellAddress> addresses = new HashSet<>();
+        for (Cell cell : members) {
+            addresses.add(cell.getAddress());
+        }
+        for (Cell cell : members) {
+            for (CellAddress dependent : edges.get(cell.getAddress())) {
+                if (addresses.contains(dependent)) {
+                    return;
+                }
+            }
+        }
+        List<CellAddress> ordered = new ArrayList<>(members.size());
+        for (Cell cell : members) {
+            ordered.add(cell.getAddress());
+        }
+        CellRun run = CellRun.of(ordered);
+        for (CellAddress address : ordered) {
+            runs.put(address, run);
+        }
+    }
+
+    private static List<List<CellRun>> levelOrder(List<CellAddress> affected,
+                                                  Map<CellAddress, List<CellAddress>> edges,
+                                                  Map<CellAddress, CellRun> runs) {
+        // Kahn's algorithm over units (runs and single cells), one wave at a time: a level holds
+        // the units whose inputs are all in earlier levels, so a level's units are independent.
+        // The affected set is closed under dependents, so counting incoming edges from it gives
+        // each unit's number of dirty inputs. dependentsOf may list a cell twice (reference plus
+        // range); it is counted and released twice, which keeps the bookkeeping balanced.
+        // Edges inside a run were ruled out by addRun, so a complete order here means the cell
+        // graph is acyclic too. Returns null when the units form a cycle.
+        // Counts are merged with (a, b) -> a + b: the TeaVM classlib has no Integer.sum.
+        Map<CellAddress, CellRun> unitOf = new HashMap<>(runs);
+        List<CellRun> units = new ArrayList<>();
+        for (CellAddress address : affected) {
+            CellRun unit = unitOf.get(address);
+            if (unit == null) {
+                unit = CellRun.single(address);
+                unitOf.put(address, unit);
+                units.add(unit);
+            } else if (unit.get(0).equals(address)) {
+                units.add(unit);
+            }
+        }
+
+        Map<CellRun, Integer> pendingInputs = new HashMap<>();
+        for (CellAddress address : affected) {
+            CellRun unit = unitOf.get(address);
+            for (CellAddress dependent : edges.get(address)) {
+                CellRun target = unitOf.get(dependent);
+                if (target != unit) {
+                    pendingInputs.merge(target, 1, (a, b) -> a + b);
+                }
+            }
+        }
+
+        List<CellRun> ready = new ArrayList<>();
+        for (CellRun unit : units) {
+            if (!pendingInputs.containsKey(unit)) {
+                ready.add(unit);
+            }
+        }
+
+        List<List<CellRun>> levels = new ArrayList<>();
+        int ordered = 0;
+        while (!ready.isEmpty()) {
+            levels.add(ready);
+            ordered += ready.size();
+            List<CellRun> next = new ArrayList<>();
+            for (CellRun current : ready) {
+                for (int i = 0; i < current.size(); i++) {
+                    for (CellAddress dependent : edges.get(current.get(i))) {
+                        CellRun target = unitOf.get(dependent);
+                        if (target != current && pendingInputs.merge(target, -1, (a, b) -> a + b) == 0) {
+                            next.add(target);
+                        }
+                    }
+                }
+            }
+            ready = next;
+        }
+        return (ordered == units.size()) ? levels : null;
+    }
+}
@@ -0,0 +1,32 @@
+package spreadsheet;
+
+import java.util.List;
+
+import spreadsheet.formula.eval.CellLookup;
+
+// Runs the topological levels produced by the RecalculationEngine.
+// Units within a level never read each other, so they may run in any order or at the same
+// time; levels must run one after another. Returns the number of cells evaluated.
+
+interface RecalculationScheduler {
+    RecalculationScheduler SEQUENTIAL = (levels, cells, lookup) -> {
+        // default, and the only scheduler the web build can use
+        int count = 0;
+        for (List<CellRun> level : levels) {
+            for (CellRun unit : level) {
+                count += unit.evaluate(cells, lookup);
+            }
+        }
+        return count;
+    };
+
+    int run(List<List<CellRun>> levels, CellStore cells, CellLookup lookup);
+
+    default RecalculationScheduler share() {
+        // for one more sheet (a fork) to use; each user calls close() once when done with it
+        return this;
+    }
+
+    default void close() {
+    }
+}
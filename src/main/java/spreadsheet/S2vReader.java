@@ -0,0 +1,345 @@
+package spreadsheet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+// Tokenizer for S2V files: one row per line, cells separated by semicolons, except semicolons
+// inside function parentheses. Blank tokens are skipped and formulas get their commas turned
+// back into argument separators, so the sink only sees cells to store.
+// readMapped scans a memory-mapped file as bytes and only builds a String for non-blank
+// tokens, readMappedParallel does the same for chunks of the file on several threads;
+// readLines is the reader-based path used for in-memory S2V text.
+
+public final class S2vReader {
+    // mapping window; a file larger than this is mapped piece by piece
+    private static final long WINDOW = 1L << 30;
+    // bytes copied out of the mapping per scan, grown when a single line is longer
+    private static final int BLOCK = 1 << 16;
+    // smallest chunk handed to a worker by readMappedParallel
+    private static final int MIN_CHUNK = 1 << 18;
+
+    private S2vReader() {
+    }
+
+    public interface CellSink {
+        // rows and columns are 1-based, content is never blank
+        void accept(int row, int column, String content);
+    }
+
+    public static void readMapped(Path path, CellSink sink) throws IOException {
+        // The mapping is copied out in blocks with bulk gets and scanned as a byte array, which
+        // is much cheaper than a get(i) per byte. A line cut by the end of a block is moved to
+        // the front and finished with the next one. S2V text is decoded as UTF-8; separators
+        // are ASCII, so they are scanned as raw bytes.
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            LineScanner scanner = new LineScanner(sink, 1);
+            byte[] block = new byte[BLOCK];
+            int filled = 0;
+            for (long position = 0; position < size; position += WINDOW) {
+                long length = Math.min(WINDOW, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                while (buffer.hasRemaining()) {
+                    if (filled == block.length) {
+                        block = Arrays.copyOf(block, block.length * 2);
+                    }
+                    int count = Math.min(block.length - filled, buffer.remaining());
+                    buffer.get(block, filled, count);
+                    filled += count;
+                    int consumed = scanner.scan(block, 0, filled, false);
+                    System.arraycopy(block, consumed, block, 0, filled - consumed);
+                    filled -= consumed;
+                }
+            }
+            scanner.scan(block, 0, filled, true);
+        }
+    }
+
+    public static <S extends CellSink> List<S> readMappedParallel(Path path, int parallelism, Supplier<S> sinks)
+            throws IOException {
+        // Splits each mapped window at line ends into chunks and scans them on a pool of
+        // `parallelism` threads. Line ends are counted per chunk first, so every chunk knows its
+        // first row before any cell is reported. Each chunk gets its own sink, called from a
+        // worker thread in row order; the sinks are returned in file order. An exception thrown
+        // by a sink is rethrown for the earliest chunk that failed.
+        List<S> result = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int firstRow = 1;
+            for (long position = 0; position < size; ) {
+                long length = Math.min(WINDOW, size - position);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                int end = (position + length == size) ? (int) length : lastLineEnd(buffer);
+                if (end == 0) {
+                    throw new IOException("S2V line longer than " + WINDOW + " bytes at offset " + position);
+                }
+                List<int[]> chunks = splitAtLines(buffer, end, Math.max(MIN_CHUNK, end / (parallelism * 4)));
+
+                List<Callable<Integer>> counts = new ArrayList<>();
+                for (int[] chunk : chunks) {
+                    counts.add(() -> countLines(slice(buffer, chunk)));
+                }
+                List<Integer> lines = runAll(pool, counts);
+
+                List<Callable<S>> scans = new ArrayList<>();
+                int row = firstRow;
+                for (int i = 0; i < chunks.size(); i++) {
+                    int[] chunk = chunks.get(i);
+                    int chunkRow = row;
+                    scans.add(() -> {
+                        S sink = sinks.get();
+                        scan(slice(buffer, chunk), new LineScanner(sink, chunkRow));
+                        return sink;
+                    });
+                    row += lines.get(i);
+                }
+                result.addAll(runAll(pool, scans));
+                firstRow = row;
+                position += end;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    private static void scan(ByteBuffer slice, LineScanner scanner) {
+        // the slice ends at a line end or at the end of the file
+        byte[] block = new byte[BLOCK];
+        int filled = 0;
+        while (slice.hasRemaining()) {
+            if (filled == block.length) {
+                block = Arrays.copyOf(block, block.length * 2);
+            }
+            int count = Math.min(block.length - filled, slice.remaining());
+            slice.get(block, filled, count);
+            filled += count;
+            int consumed = scanner.scan(block, 0, filled, false);
+            System.arraycopy(block, consumed, block, 0, filled - consumed);
+            filled -= consumed;
+        }
+        scanner.scan(block, 0, filled, true);
+    }
+
+    private static int countLines(ByteBuffer slice) {
+        // line terminators in the slice, "\r\n" counted once; the slice ends after one of them
+        byte[] block = new byte[BLOCK];
+        int lines = 0;
+        boolean afterCr = false;
+        while (slice.hasRemaining()) {
+            int count = Math.min(block.length, slice.remaining());
+            slice.get(block, 0, count);
+            for (int i = 0; i < count; i++) {
+                byte b = block[i];
+                if (b == '\n') {
+                    if (!afterCr) {
+                        lines++;
+                    }
+                } else if (b == '\r') {
+                    lines++;
+                }
+                afterCr = b == '\r';
+            }
+        }
+        return lines;
+    }
+
+    private static List<int[]> splitAtLines(ByteBuffer buffer, int end, int chunkSize) {
+        // [start, end) ranges of roughly chunkSize bytes, each cut just after a '\n'
+        List<int[]> chunks = new ArrayList<>();
+        int start = 0;
+        while (start < end) {
+            int cut = Math.min(end, start + chunkSize);
+            while (cut < end && buffer.get(cut - 1) != '\n') {
+                cut++;
+            }
+            chunks.add(new int[] {start, cut});
+            start = cut;
+        }
+        return chunks;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int[] range) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(range[1]);
+        slice.position(range[0]);
+        return slice;
+    }
+
+    private static int lastLineEnd(ByteBuffer buffer) {
+        // end of the last complete line in the window, 0 when there is none.
+        // A trailing '\r' may be the first half of "\r\n", so it is left for the next window.
+        int limit = buffer.limit();
+        for (int i = limit - 1; i >= 0; i--) {
+            byte b = buffer.get(i);
+            if (b == '\n' || (b == '\r' && i + 1 < limit)) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private static <T> List<T> runAll(ExecutorService pool, List<Callable<T>> tasks) {
+        // results in task order; the first failed task, in that order, decides the exception
+        List<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading S2V data", ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+        return results;
+    }
+
+    public static void readLines(BufferedReader reader, CellSink sink) throws IOException {
+        String line;
+        int row = 1;
+        while ((line = reader.readLine()) != null) {
+            List<String> tokens = splitLine(line);
+            for (int i = 0; i < tokens.size(); i++) {
+                String content = tokens.get(i);
+                if (!content.strip().isEmpty()) {
+                    if (content.startsWith("=")) {
+                        content = content.replace(",", ";");
+                    }
+                    sink.accept(row, i + 1, content);
+                }
+            }
+            row++;
+        }
+    }
+
+    static List<String> splitLine(String line) {
+        // Split on semicolons, but ignore those inside function parentheses for loading edge case.
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        int parenDepth = 0;
+
+        for (int i = 0; i < line.length(); i++) {
+            char ch = line.charAt(i);
+            if (ch == '(') {
+                parenDepth++;
+            } else if (ch == ')' && parenDepth > 0) {
+                parenDepth--;
+            }
+
+            if (ch == ';' && parenDepth == 0) {
+                tokens.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(ch);
+            }
+        }
+
+        tokens.add(current.toString());
+        return tokens;
+    }
+
+    static final class LineScanner {
+        // scans complete lines out of a byte array and remembers the row it has reached
+        private final CellSink sink;
+        private int row;
+
+        LineScanner(CellSink sink, int firstRow) {
+            this.sink = sink;
+            this.row = firstRow;
+        }
+
+        int scan(byte[] data, int from, int to, boolean atEnd) {
+            // Returns where the first unfinished line starts. With atEnd the rest is one last
+            // line without a terminator, as readLine would return it. A '\r' at the end of the
+            // data may be the first half of "\r\n", so it is only taken at the end.
+            int lineStart = from;
+            for (int i = from; i < to; i++) {
+                byte b = data[i];
+                if (b != '\n' && b != '\r') {
+                    continue;
+                }
+                if (b == '\r' && i + 1 == to && !atEnd) {
+                    break;
+                }
+                scanLine(data, lineStart, i);
+                if (b == '\r' && i + 1 < to && data[i + 1] == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+            }
+            if (atEnd && lineStart < to) {
+                scanLine(data, lineStart, to);
+                lineStart = to;
+            }
+            return lineStart;
+        }
+
+        private void scanLine(byte[] data, int start, int end) {
+            int depth = 0;
+            int column = 1;
+            int tokenStart = start;
+            for (int i = start; i < end; i++) {
+                byte b = data[i];
+                if (b == '(') {
+                    depth++;
+                } else if (b == ')' && depth > 0) {
+                    depth--;
+                } else if (b == ';' && depth == 0) {
+                    emit(data, tokenStart, i, column);
+                    column++;
+                    tokenStart = i + 1;
+                }
+            }
+            emit(data, tokenStart, end, column);
+            row++;
+        }
+
+        private void emit(byte[] data, int start, int end, int column) {
+            int first = start;
+            while (first < end && data[first] >= 0 && Character.isWhitespace(data[first])) {
+                first++;
+            }
+            if (first == end) {
+                return;
+            }
+            if (data[start] == '=') {
+                // commas never occur inside a multi-byte UTF-8 sequence
+                for (int i = start + 1; i < end; i++) {
+                    if (data[i] == ',') {
+                        data[i] = ';';
+                    }
+                }
+            }
+            String content = new String(data, start, end - start, StandardCharsets.UTF_8);
+            if (data[first] < 0 && content.strip().isEmpty()) {
+                // only non-ASCII whitespace left, e.g. an em space
+                return;
+            }
+            sink.accept(row, column, content);
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package spreadsheet;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+// Streams a sheet out as S2V: rows 1..maxRow, each with maxColumn fields separated by semicolons
+// and formula semicolons written as commas. Only occupied cells are visited: their packed keys
+// (row in the high half) are sorted once, and the gaps between them are filled from a run of
+// separators, so the work is proportional to the occupied cells plus the bytes written.
+
+final class S2vWriter {
+    // longest run of separators written in one call
+    private static final int SEPARATOR_RUN = 1 << 12;
+
+    private S2vWriter() {
+    }
+
+    static void write(CellStore cells, Writer out, String lineSeparator) throws IOException {
+        long[] keys = new long[cells.size()];
+        int[] count = new int[1];
+        cells.forEach(cell -> {
+            // referenced-but-empty cells would stretch the rectangle, see getMaxRow
+            String content = cell.getContent();
+            if (content != null && !content.isEmpty()) {
+                keys[count[0]++] = cell.getAddress().pack();
+            }
+        });
+        int n = count[0];
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(keys, 0, n);
+
+        int maxColumn = 0;
+        for (int i = 0; i < n; i++) {
+            maxColumn = Math.max(maxColumn, CellAddress.unpackColumn(keys[i]));
+        }
+        int maxRow = CellAddress.unpackRow(keys[n - 1]);
+
+        char[] separators = new char[Math.min(maxColumn, SEPARATOR_RUN)];
+        Arrays.fill(separators, ';');
+        int next = 0;
+        for (int row = 1; row <= maxRow; row++) {
+            int column = 1;
+            while (next < n && CellAddress.unpackRow(keys[next]) == row) {
+                int cellColumn = CellAddress.unpackColumn(keys[next++]);
+                writeSeparators(out, separators, cellColumn - column);
+                column = cellColumn;
+                String content = cells.get(row, cellColumn).getContent();
+                out.write(content.startsWith("=") ? content.replace(";", ",") : content);
+            }
+            writeSeparators(out, separators, maxColumn - column);
+            out.write(lineSeparator);
+        }
+    }
+
+    private static void writeSeparators(Writer out, char[] separators, int count) throws IOException {
+        while (count > 0) {
+            int chunk = Math.min(count, separators.length);
+            out.write(separators, 0, chunk);
+            count -= chunk;
+        }
+    }
+}
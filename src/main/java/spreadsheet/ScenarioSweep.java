@@ -0,0 +1,261 @@
+package spreadsheet;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalDouble;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.CellLookup;
+
+// Sensitivity sweep: many input vectors through the same sheet without touching its cells.
+// The cone is the set of formulas downstream of the inputs that some output depends on; it is
+// ordered once, and each scenario evaluates only those formulas into a scratch array. Every
+// other cell is read from the sheet as it stands, so scenarios are independent and run on a
+// fork/join pool, one scratch array per slice.
+// The sheet must not be edited while a sweep runs. JVM only, like the parallel scheduler.
+
+final class ScenarioSweep {
+    // scenarios per task; keeps the split overhead small next to the cone evaluations
+    private static final int SLICE_SCENARIOS = 64;
+
+    private final Spreadsheet sheet;
+    // scratch slot of every input and cone cell, by packed address
+    private final LongMap<Integer> slotOf = new LongMap<>();
+    private final int[] inputSlots;
+    private final CompiledFormula[] steps;
+    private final int[] stepSlots;
+    private final List<CellAddress> outputs;
+    // every slot address lies in here, ranges outside it are scanned by the store directly
+    private final RangeBounds scratchBounds;
+
+    ScenarioSweep(Spreadsheet sheet, DependencyGraph dependencies,
+                  List<CellAddress> inputs, List<CellAddress> outputs) {
+        this.sheet = sheet;
+        this.outputs = new ArrayList<>(outputs);
+
+        inputSlots = new int[inputs.size()];
+        for (int i = 0; i < inputs.size(); i++) {
+            inputSlots[i] = slotFor(inputs.get(i));
+        }
+
+        List<CellAddress> cone = cone(dependencies, new HashSet<>(inputs), new HashSet<>(outputs));
+        steps = new CompiledFormula[cone.size()];
+        stepSlots = new int[cone.size()];
+        for (int i = 0; i < cone.size(); i++) {
+            CellAddress address = cone.get(i);
+            steps[i] = sheet.getCell(address.getRow(), address.getColumn()).getFormula();
+            stepSlots[i] = slotFor(address);
+        }
+
+        int rowMin = Integer.MAX_VALUE;
+        int colMin = Integer.MAX_VALUE;
+        int rowMax = Integer.MIN_VALUE;
+        int colMax = Integer.MIN_VALUE;
+        List<CellAddress> slotted = new ArrayList<>(inputs);
+        slotted.addAll(cone);
+        for (CellAddress address : slotted) {
+            rowMin = Math.min(rowMin, address.getRow());
+            rowMax = Math.max(rowMax, address.getRow());
+            colMin = Math.min(colMin, address.getColumn());
+            colMax = Math.max(colMax, address.getColumn());
+        }
+        scratchBounds = slotted.isEmpty() ? null : new RangeBounds(rowMin, colMin, rowMax, colMax);
+    }
+
+    double[][] run(double[][] scenarios, int parallelism) {
+        for (double[] scenario : scenarios) {
+            if (scenario.length != inputSlots.length) {
+                throw new IllegalArgumentException("Expected " + inputSlots.length
+                    + " input values per scenario, got " + scenario.length);
+            }
+        }
+        double[][] results = new double[scenarios.length][];
+        if (parallelism == 1 || scenarios.length <= SLICE_SCENARIOS) {
+            new Slice(scenarios, results, 0, scenarios.length).compute();
+            return results;
+        }
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Slice(scenarios, results, 0, scenarios.length));
+        } finally {
+            pool.shutdown();
+        }
+        return results;
+    }
+
+    private int slotFor(CellAddress address) {
+        Integer slot = slotOf.get(address.pack());
+        if (slot == null) {
+            slot = slotOf.size();
+            slotOf.put(address.pack(), slot);
+        }
+        return slot;
+    }
+
+    private List<CellAddress> cone(DependencyGraph dependencies,
+                                   Set<CellAddress> inputs, Set<CellAddress> outputs) {
+        // Forward BFS from the inputs gives everything that can change, ordered with Kahn's
+        // algorithm. Walking that order backwards keeps the cells an output actually reads.
+        Map<CellAddress, List<CellAddress>> edges = new HashMap<>();
+        Deque<CellAddress> queue = new ArrayDeque<>(inputs);
+        Set<CellAddress> downstream = new HashSet<>(inputs);
+        while (!queue.isEmpty()) {
+            CellAddress current = queue.removeFirst();
+            List<CellAddress> next = dependencies.dependentsOf(current);
+            edges.put(current, next);
+            for (CellAddress dependent : next) {
+                if (downstream.add(dependent)) {
+                    queue.add(dependent);
+                }
+            }
+        }
+
+        Map<CellAddress, Integer> pendingInputs = new HashMap<>();
+        for (List<CellAddress> next : edges.values()) {
+            for (CellAddress dependent : next) {
+                pendingInputs.merge(dependent, 1, (a, b) -> a + b);
+            }
+        }
+        List<CellAddress> order = new ArrayList<>(downstream.size());
+        for (CellAddress address : downstream) {
+            if (!pendingInputs.containsKey(address)) {
+                order.add(address);
+            }
+        }
+        for (int i = 0; i < order.size(); i++) {
+            for (CellAddress dependent : edges.get(order.get(i))) {
+                if (pendingInputs.merge(dependent, -1, (a, b) -> a + b) == 0) {
+                    order.add(dependent);
+                }
+            }
+        }
+
+        Set<CellAddress> needed = new HashSet<>();
+        List<CellAddress> cone = new ArrayList<>();
+        for (int i = order.size() - 1; i >= 0; i--) {
+            CellAddress address = order.get(i);
+            boolean feedsOutput = outputs.contains(address);
+            for (CellAddress dependent : edges.get(address)) {
+                feedsOutput |= needed.contains(dependent);
+            }
+            if (!feedsOutput) {
+                continue;
+            }
+            needed.add(address);
+            // inputs are overridden, so their own formulas are never evaluated
+            Cell cell = sheet.getCell(address.getRow(), address.getColumn());
+            if (!inputs.contains(address) && cell != null && cell.getFormula() != null) {
+                cone.add(address);
+            }
+        }
+        Collections.reverse(cone);
+        return cone;
+    }
+
+    private final class Slice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] scenarios;
+        private final double[][] results;
+        private final int from;
+        private final int to;
+
+        private Slice(double[][] scenarios, double[][] results, int from, int to) {
+            this.scenarios = scenarios;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute() {
+            if (to - from > SLICE_SCENARIOS && getPool() != null) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Slice(scenarios, results, from, middle),
+                          new Slice(scenarios, results, middle, to));
+                return;
+            }
+            Scratch scratch = new Scratch(slotOf.size());
+            for (int i = from; i < to; i++) {
+                results[i] = scratch.evaluate(scenarios[i]);
+            }
+        }
+    }
+
+    private final class Scratch implements CellLookup {
+        private final double[] values;
+        private final FormulaException[] errors;
+
+        private Scratch(int slots) {
+            this.values = new double[slots];
+            this.errors = new FormulaException[slots];
+        }
+
+        double[] evaluate(double[] scenario) {
+            for (int i = 0; i < inputSlots.length; i++) {
+                values[inputSlots[i]] = scenario[i];
+                errors[inputSlots[i]] = null;
+            }
+            for (int i = 0; i < steps.length; i++) {
+                int slot = stepSlots[i];
+                try {
+                    values[slot] = steps[i].evaluate(this);
+                    errors[slot] = null;
+                } catch (FormulaException ex) {
+                    errors[slot] = ex;
+                }
+            }
+            double[] result = new double[outputs.size()];
+            for (int i = 0; i < result.length; i++) {
+                CellAddress output = outputs.get(i);
+                try {
+                    result[i] = findCell(output.getRow(), output.getColumn());
+                } catch (FormulaException ex) {
+                    // errors and text show up as NaN, like a failed cell in a chart series
+                    result[i] = Double.NaN;
+                }
+            }
+            return result;
+        }
+
+        public double findCell(int rowIndex, int columnIndex) {
+            Integer slot = slotOf.get(CellAddress.pack(rowIndex, columnIndex));
+            if (slot == null) {
+                return sheet.resolveCellValue(rowIndex, columnIndex);
+            }
+            if (errors[slot] != null) {
+                throw errors[slot];
+            }
+            return values[slot];
+        }
+
+        public OptionalDouble findCellOptional(int rowIndex, int columnIndex) {
+            if (slotOf.get(CellAddress.pack(rowIndex, columnIndex)) == null) {
+                return sheet.findCellOptional(rowIndex, columnIndex);
+            }
+            return OptionalDouble.of(findCell(rowIndex, columnIndex));
+        }
+
+        public void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+            if (scratchBounds == null
+                || bounds.getRowMax() < scratchBounds.getRowMin() || bounds.getRowMin() > scratchBounds.getRowMax()
+                || bounds.getColMax() < scratchBounds.getColMin() || bounds.getColMin() > scratchBounds.getColMax()) {
+                sheet.forEachValue(bounds, consumer);
+                return;
+            }
+            // the range may hold scratch values, probe it cell by cell in row order
+            CellLookup.super.forEachValue(bounds, consumer);
+        }
+    }
+}
@@ -1,70 +1,255 @@
 package spreadsheet;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
-import java.util.ArrayDeque;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.OptionalDouble;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
 import spreadsheet.exceptions.FormulaException;
-import spreadsheet.formula.ast.ExpressionNode;
-import spreadsheet.formula.ast.ReferenceCollector;
-import spreadsheet.formula.lexer.FormulaTokenizer;
-import spreadsheet.formula.lexer.Token;
-import spreadsheet.formula.parser.ShuntingYardParser;
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.FormulaShapeCache;
+import spreadsheet.formula.ast.RangeBounds;
 import spreadsheet.formula.eval.CellLookup;
 
 
 public class Spreadsheet implements CellLookup{
-    private final Map<CellAddress, Cell> cells;
-    private final Map<CellAddress, Set<CellAddress>> dependencies;
-    private final Map<CellAddress, Set<CellAddress>> dependents;
+    // files below this size are not worth splitting over threads
+    private static final long PARALLEL_LOAD_BYTES = 1L << 20;
+    // lookups by row/column so formulas do not allocate, see CellStorage for the engines
+    private final CellStore cells;
+    private final DependencyGraph dependencies;
+    private final RecalculationEngine recalculationEngine;
+    // copied formulas (=A1*B1, =A2*B2, ...) share one parsed and compiled shape;
+    // forks share the cache too, so it is replaced rather than cleared on a reset
+    private FormulaShapeCache shapes = new FormulaShapeCache();
+    // replaced on every fork, see Cell.isOwnedBy
+    private Object writeToken = new Object();
+    private final boolean readOnly;
+    // threads used by loadFromFile for large files; 0 means one per available processor
+    private int loadParallelism;
+    // as last passed to setRecalculationParallelism; forks share the scheduler that goes with it
+    private int recalculationParallelism = 1;
+    // attached by EditJournal.open; forks and snapshots are never journaled
+    private EditLog editLog;
 
     public Spreadsheet() {
-        this.cells = new HashMap<>();
-        this.dependencies = new HashMap<>();
-        this.dependents = new HashMap<>();
+        this(CellStorage.HASHED);
+    }
+
+    public Spreadsheet(CellStorage storage) {
+        this.cells = storage.createStore();
+        this.dependencies = new DependencyGraph();
+        this.recalculationEngine = new RecalculationEngine(cells, dependencies, this);
+        this.readOnly = false;
+    }
+
+    private Spreadsheet(Spreadsheet parent, boolean readOnly) {
+        // Shares the parent's cells and dependency graph. From here on both sides copy a cell
+        // before changing it, and a graph entry before changing its edges.
+        // cells computed on read must not be shared while still dirty
+        parent.recalculationEngine.evaluatePending();
+        this.cells = parent.cells.fork();
+        this.dependencies = parent.dependencies.fork();
+        this.recalculationEngine = new RecalculationEngine(cells, dependencies, this);
+        this.readOnly = readOnly;
+        this.shapes = parent.shapes;
+        this.loadParallelism = parent.loadParallelism;
+        if (!readOnly) {
+            // one pool serves the sheet and all its forks, see ParallelRecalculationScheduler
+            recalculationEngine.setLazy(parent.recalculationEngine.isLazy());
+            recalculationEngine.setScheduler(parent.recalculationEngine.getScheduler().share());
+            recalculationParallelism = parent.recalculationParallelism;
+        }
+        parent.writeToken = new Object();
     }
 
     // Public API
     public int getRowCount() { return getMaxRow(); }
     public int getColumnCount() { return getMaxColumn(); }
 
+    public void setRecalculationParallelism(int parallelism) {
+        // 1 (the default) recalculates on the calling thread; more spreads each independent
+        // level of the dependency graph over a fork/join pool. Results are the same either way.
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        recalculationEngine.getScheduler().close();
+        recalculationEngine.setScheduler(parallelism == 1
+            ? RecalculationScheduler.SEQUENTIAL
+            : new ParallelRecalculationScheduler(parallelism));
+        recalculationParallelism = parallelism;
+    }
+
+    public int getRecalculationParallelism() {
+        return recalculationParallelism;
+    }
+
+    public void setLazyEvaluation(boolean lazy) {
+        // Lazy mode: edits only mark the affected formulas dirty (cycles are still rejected) and
+        // a value is computed, together with its dirty inputs, when something reads it.
+        // Eager mode, the default, recalculates every affected cell during the edit.
+        recalculationEngine.setLazy(lazy);
+    }
+
+    public boolean isLazyEvaluation() {
+        return recalculationEngine.isLazy();
+    }
+
+    public double[][] sweep(List<CellAddress> inputs, double[][] scenarios, List<CellAddress> outputs) {
+        return sweep(inputs, scenarios, outputs, Runtime.getRuntime().availableProcessors());
+    }
+
+    public double[][] sweep(List<CellAddress> inputs, double[][] scenarios, List<CellAddress> outputs,
+                            int parallelism) {
+        // Evaluates the outputs once per row of scenarios, with the inputs set to that row's
+        // values (in input order). Only the formulas between inputs and outputs are computed and
+        // the sheet itself is left unchanged. Outputs that fail or are not numeric come back NaN.
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        // the sweep reads the sheet from several threads, nothing may be left to compute on read
+        recalculationEngine.evaluatePending();
+        return new ScenarioSweep(this, dependencies, inputs, outputs).run(scenarios, parallelism);
+    }
+
+    public Spreadsheet fork() {
+        // independent copy for what-if edits; with CellStorage.PERSISTENT it costs O(1),
+        // and each side only pays for the cells and graph entries it changes afterwards.
+        // HASHED and COLUMNAR copy their cell index here, the graph is shared either way.
+        // The fork keeps the lazy, recalculation and load parallelism settings and the formula
+        // shape cache; an edit journal is never carried over.
+        return new Spreadsheet(this, false);
+    }
+
+    public Spreadsheet snapshot() {
+        // read-only fork, keeps the current values while this sheet moves on; it never
+        // recalculates, so it gets no scheduler of its own
+        return new Spreadsheet(this, true);
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public void setLoadParallelism(int parallelism) {
+        // threads that tokenize and compile chunks of a large file in loadFromFile; 1 loads on
+        // the calling thread. Storing cells and building the graph stay on the calling thread.
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        loadParallelism = parallelism;
+    }
+
+    Cell getCell(int rowIndex, int columnIndex) {
+        return cells.get(rowIndex, columnIndex);
+    }
+
+    void forEachCell(Consumer<Cell> action) {
+        cells.forEach(action);
+    }
+
+    List<CellAddress> getLastRecalculatedCells() {
+        return recalculationEngine.getLastAffected();
+    }
+
+    int getFormulaShapeCount() {
+        return shapes.size();
+    }
+
+    public int getLastRecalculationCount() {
+        // number of cells recomputed by the most recent edit, for monitoring
+        return recalculationEngine.getLastRecalculationCount();
+    }
+
     public void setCellContent(CellAddress address, String content) {
-        // Sets the content of a cell, updating dependencies and checking for cycles
-        if (content == null || content.strip().isEmpty()) {
+        // Sets the content of a cell, updating dependencies and checking for cycles.
+        // With an EditJournal open, an UncheckedIOException means the edit was applied in memory
+        // but may not have reached the journal.
+        checkWritable();
+        if (isBlank(content)) {
             removeCellAndEdges(address);
             refreshDependents(address);
+            record(Collections.singletonMap(address, content));
             return;
         }
 
-        Cell cell = cells.get(address);
-        if (cell == null) {
-            cell = new Cell(this, address, "");
-            cells.put(address, cell);
+        // parse once here, the cell keeps the compiled formula for evaluation
+        CompiledFormula formula = Cell.compileFormula(content, address, shapes);
+
+        if (createsCycle(address, formula)) {
+            throw new FormulaException("Circular reference found");
         }
 
-        Set<CellAddress> oldDeps = dependencies.getOrDefault(address, Set.of());
-        Set<CellAddress> newDeps = collectDependencies(content);
+        putCell(address, content, formula);
+        refreshDependents(address);
+        record(Collections.singletonMap(address, content));
+    }
+
+    public void applyEdits(Map<CellAddress, String> edits) {
+        // Applies a batch of edits as one transaction: formulas are compiled up front, cycles are
+        // checked once for the whole batch and the union of affected cells is recalculated once.
+        // If the batch would create a circular reference every edit is rolled back.
+        // An UncheckedIOException from an open EditJournal leaves the batch applied in memory,
+        // possibly without a journal record.
+        checkWritable();
+        if (edits.isEmpty()) {
+            return;
+        }
+        Map<CellAddress, CompiledFormula> formulas = new HashMap<>();
+        for (Map.Entry<CellAddress, String> edit : edits.entrySet()) {
+            if (!isBlank(edit.getValue())) {
+                formulas.put(edit.getKey(), Cell.compileFormula(edit.getValue(), edit.getKey(), shapes));
+            }
+        }
 
-        updateDependencies(address, oldDeps, newDeps);
+        // copies, since putCell changes an owned cell in place
+        Map<CellAddress, Cell> previousCells = new HashMap<>();
+        for (CellAddress address : edits.keySet()) {
+            Cell cell = cells.get(address.getRow(), address.getColumn());
+            previousCells.put(address, (cell == null) ? null : cell.copyFor(this));
+        }
 
-        if (hasCycleFrom(address)) {
-            updateDependencies(address, newDeps, oldDeps);
-            throw new FormulaException("Circular reference found");
+        for (Map.Entry<CellAddress, String> edit : edits.entrySet()) {
+            CellAddress address = edit.getKey();
+            if (isBlank(edit.getValue())) {
+                removeCellAndEdges(address);
+            } else {
+                putCell(address, edit.getValue(), formulas.get(address));
+            }
         }
 
-        cell.setContent(content);
-        refreshDependents(address);
+        try {
+            recalculationEngine.recalculate(edits.keySet());
+        } catch (FormulaException ex) {
+            for (CellAddress address : edits.keySet()) {
+                Cell previous = previousCells.get(address);
+                if (previous == null) {
+                    removeCellAndEdges(address);
+                } else {
+                    cells.put(previous);
+                    updateDependencies(address, previous.getFormula());
+                }
+            }
+            recalculationEngine.recalculate(edits.keySet());
+            throw ex;
+        }
+        record(edits);
     }
 
     public void setCellContent(String address, String content) {
@@ -76,12 +261,7 @@ public class Spreadsheet implements CellLookup{
     }
 
     public String getCellContent(CellAddress address) {
-        // Returns the raw content of the cell
-        Cell cell = cells.get(address);
-        if (cell == null) {
-            return "";
-        }
-        return cell.getContent();
+        return getCellContentRC(address.getRow(), address.getColumn());
     }
 
     public String getCellContent(String address) {
@@ -89,16 +269,16 @@ public class Spreadsheet implements CellLookup{
     }
 
     public String getCellContentRC(int rowIndex, int columnIndex) {
-        return getCellContent(new CellAddress(rowIndex, columnIndex));
-    }
-
-    public String getCellDisplayValue(CellAddress address) {
-        // Returns the display value of the cell
-        Cell cell = cells.get(address);
+        // Returns the raw content of the cell
+        Cell cell = cells.get(rowIndex, columnIndex);
         if (cell == null) {
             return "";
         }
-        return cell.getDisplayValue();
+        return cell.getContent();
+    }
+
+    public String getCellDisplayValue(CellAddress address) {
+        return getCellDisplayValueRC(address.getRow(), address.getColumn());
     }
 
     public String getCellDisplayValue(String address) {
@@ -106,16 +286,17 @@ public class Spreadsheet implements CellLookup{
     }
 
     public String getCellDisplayValueRC(int rowIndex, int columnIndex) {
-        return getCellDisplayValue(new CellAddress(rowIndex, columnIndex));
+        // Returns the display value of the cell
+        Cell cell = cells.get(rowIndex, columnIndex);
+        if (cell == null) {
+            return "";
+        }
+        evaluateIfDirty(cell);
+        return cell.getDisplayValue();
     }
 
     public boolean isCellError(CellAddress address) {
-        // for the ui
-        Cell cell = cells.get(address);
-        if (cell == null) {
-            return false;
-        }
-        return "#ERR".equals(cell.getDisplayValue());
+        return isCellErrorRC(address.getRow(), address.getColumn());
     }
 
     public boolean isCellError(String address) {
@@ -123,18 +304,24 @@ public class Spreadsheet implements CellLookup{
     }
 
     public boolean isCellErrorRC(int rowIndex, int columnIndex) {
-        return isCellError(new CellAddress(rowIndex, columnIndex));
+        // for the ui
+        Cell cell = cells.get(rowIndex, columnIndex);
+        if (cell == null) {
+            return false;
+        }
+        evaluateIfDirty(cell);
+        return cell.isError();
     }
 
     public List<CellAddress> getNonEmptyCells() {
         // helper for the ui
         List<CellAddress> result = new ArrayList<>();
-        for (Map.Entry<CellAddress, Cell> entry : cells.entrySet()) {
-            String content = entry.getValue().getContent();
+        cells.forEach(cell -> {
+            String content = cell.getContent();
             if (content != null && !content.isEmpty()) {
-                result.add(entry.getKey());
+                result.add(cell.getAddress());
             }
-        }
+        });
         return result;
     }
 
@@ -155,152 +342,236 @@ public class Spreadsheet implements CellLookup{
     }
 
     public OptionalDouble findCellOptional(int rowIndex, int columnIndex) {
-        CellAddress target = new CellAddress(rowIndex, columnIndex);
-        Cell targetCell = cells.get(target);
+        Cell targetCell = cells.get(rowIndex, columnIndex);
         if (targetCell == null) {
             return OptionalDouble.empty();
         }
-        String content = targetCell.getContent();
-        if (content == null || content.strip().isEmpty()) {
+        if (targetCell.isBlank()) {
             return OptionalDouble.empty();
         }
+        evaluateIfDirty(targetCell);
         return OptionalDouble.of(targetCell.evaluateNumericValue());
     }
 
+    public void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+        // ranges are scanned by the store rather than probed cell by cell
+        cells.forEachValue(bounds, consumer);
+    }
+
+    public void readColumn(int firstRow, int column, double[] out) {
+        // column reads for runs of copied formulas, served by the store in one pass
+        cells.readColumn(firstRow, column, out);
+    }
+
     // API / evaluation interface
     double resolveCellValue(int rowIndex, int columnIndex) {
         // Resolves the numeric value of a referenced cell
-        CellAddress target = new CellAddress(rowIndex, columnIndex);
-        Cell targetCell = cells.get(target);
+        Cell targetCell = cells.get(rowIndex, columnIndex);
         if (targetCell == null) {
-            // Create a blank cell on first reference so empty cells behave as zero in numeric contexts.
-            targetCell = new Cell(this, target, "");
-            cells.put(target, targetCell);
+            // Empty cells behave as zero in numeric contexts. This used to store a blank cell
+            // on first reference; answering directly keeps the lookup allocation-free.
+            return 0.0;
         }
+        evaluateIfDirty(targetCell);
         return targetCell.evaluateNumericValue();
     }
 
+    private void evaluateIfDirty(Cell cell) {
+        // only happens in lazy mode; formulas evaluated this way find their inputs clean
+        if (cell.isDirty()) {
+            recalculationEngine.evaluate(cell);
+        }
+    }
+
     // Persistence
     public void loadFromFile(String filename) throws IOException {
         // load the spreadsheet from a s2v file
+        checkWritable();
+        // the file is memory-mapped and scanned in place, see S2vReader
         resetState();
-        try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-            loadFromReader(reader);
+        Path path = Paths.get(filename);
+        int parallelism = (loadParallelism == 0) ? Runtime.getRuntime().availableProcessors() : loadParallelism;
+        if (parallelism > 1 && Files.size(path) >= PARALLEL_LOAD_BYTES) {
+            // chunks are tokenized and their formulas compiled on worker threads
+            List<LoadedCells> chunks = S2vReader.readMappedParallel(path, parallelism, LoadedCells::new);
+            for (LoadedCells chunk : chunks) {
+                for (int i = 0; i < chunk.addresses.size(); i++) {
+                    putCell(chunk.addresses.get(i), chunk.contents.get(i), chunk.formulas.get(i));
+                }
+            }
+            recalculateLoaded();
+        } else {
+            List<CellAddress> addresses = new ArrayList<>();
+            List<String> contents = new ArrayList<>();
+            S2vReader.readMapped(path, (row, column, content) -> {
+                addresses.add(new CellAddress(row, column));
+                contents.add(content);
+            });
+            loadCells(addresses, contents);
         }
+        compactJournal();
     }
 
     public void loadFromS2vString(String s2v) {
         // load the spreadsheet from S2V content (semicolon-separated rows)
         // specifically to load the demo data in the github page since pages cant access files
+        // With an EditJournal open, an UncheckedIOException means the sheet was loaded in memory
+        // but may not have reached the journal, as for setCellContent.
+        checkWritable();
         resetState();
-        if (s2v == null || s2v.isEmpty()) {
-            return;
-        }
-        try (BufferedReader reader = new BufferedReader(new StringReader(s2v))) {
+        try (BufferedReader reader = new BufferedReader(new StringReader(s2v == null ? "" : s2v))) {
             loadFromReader(reader);
+            compactJournal();
         } catch (IOException ex) {
-            throw new IllegalStateException("Unexpected I/O while reading S2V data", ex);
+            // a StringReader does not fail, so this comes from the journal
+            throw new UncheckedIOException("Could not journal edit", ex);
         }
     }
 
     public void saveToFile(String filename) throws IOException {
-        // save the spreadsheet to a CSV file
-        int maxRow = getMaxRow();
-        int maxCol = getMaxColumn();
-
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(filename))) {
-            for (int r = 1; r <= maxRow; r++) {
-                StringBuilder line = new StringBuilder();
-
-                for (int c = 1; c <= maxCol; c++) {
-                    if (c > 1) {
-                        line.append(';');
-                    }
-
-                    CellAddress address = new CellAddress(r, c);
-                    String content = getCellContent(address);
-                    if (content.startsWith("=")) {
-                        line.append(content.replace(";", ","));
-                    } else {
-                        line.append(content);
-                    }
-                }
+        // save the spreadsheet to a S2V file, written as UTF-8 like the mapped reader expects;
+        // only occupied cells are visited, see S2vWriter
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8)) {
+            S2vWriter.write(cells, writer, System.lineSeparator());
+        }
+    }
 
-                writer.write(line.toString());
-                writer.newLine();
+    public void saveSnapshot(String filename) throws IOException {
+        // binary save with compiled formulas, cached values and the dependency edges,
+        // see BinarySnapshotFormat; loadSnapshot serves values from it without recalculating
+        saveSnapshot(Paths.get(filename), 0L);
+    }
+
+    public void loadSnapshot(String filename) throws IOException {
+        checkWritable();
+        loadSnapshot(Paths.get(filename));
+        compactJournal();
+    }
+
+    void saveSnapshot(Path path, long generation) throws IOException {
+        recalculationEngine.evaluatePending();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(path)))) {
+            BinarySnapshotFormat.write(out, cells, dependencies, generation);
+        }
+    }
+
+    long loadSnapshot(Path path) throws IOException {
+        // returns the journal generation stored with the snapshot
+        resetState();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            return BinarySnapshotFormat.read(in, this, cells, dependencies);
+        } catch (IOException | RuntimeException ex) {
+            // do not keep half a snapshot
+            resetState();
+            if (ex instanceof IOException) {
+                throw (IOException) ex;
             }
+            throw new IOException("Corrupt snapshot: " + path, ex);
+        }
+    }
+
+    void setEditLog(EditLog editLog) {
+        this.editLog = editLog;
+    }
+
+    private void record(Map<CellAddress, String> edits) {
+        // after a successful edit, so the journal only holds edits that replay cleanly
+        if (editLog != null) {
+            editLog.record(edits);
+        }
+    }
+
+    private void compactJournal() throws IOException {
+        // a whole-sheet load replaces everything the journal would replay
+        if (editLog != null) {
+            editLog.compact();
         }
     }
 
     private void resetState() {
         cells.clear();
         dependencies.clear();
-        dependents.clear();
+        shapes = new FormulaShapeCache();
     }
 
-    private void loadFromReader(BufferedReader reader) throws IOException {
-        // Load the spreadsheet from a reader (used by loadFromFile and loadFromS2vString)
-        String line;
-        int rowIndex = 1;
-
-        while ((line = reader.readLine()) != null) {
-            List<String> tokens = splitS2vLine(line);
-
-            for (int i = 0; i < tokens.size(); i++) {
-                String content = tokens.get(i);
-                int colIndex = i + 1;
-
-                if (!content.isEmpty()) {
-                    if (content.startsWith("=")) {
-                        content = content.replace(",", ";");
-                    }
-                    CellAddress address = new CellAddress(rowIndex, colIndex);
-                    setCellContent(address, content);
-                }
-            }
-            rowIndex++;
+    private void checkWritable() {
+        if (readOnly) {
+            throw new UnsupportedOperationException("Spreadsheet snapshot is read-only");
         }
     }
 
-    private List<String> splitS2vLine(String line) {
-        // Split on semicolons, but ignore those inside function parentheses for loading edge case.
-        List<String> tokens = new ArrayList<>();
-        StringBuilder current = new StringBuilder();
-        int parenDepth = 0;
+    Object writeToken() {
+        return writeToken;
+    }
 
-        for (int i = 0; i < line.length(); i++) {
-            char ch = line.charAt(i);
-            if (ch == '(') {
-                parenDepth++;
-            } else if (ch == ')' && parenDepth > 0) {
-                parenDepth--;
-            }
+    Cell ownedCell(Cell cell) {
+        // copy-on-write for cells that may still be shared with a fork
+        if (cell.isOwnedBy(writeToken)) {
+            return cell;
+        }
+        Cell copy = cell.copyFor(this);
+        cells.put(copy);
+        return copy;
+    }
 
-            if (ch == ';' && parenDepth == 0) {
-                tokens.add(current.toString());
-                current.setLength(0);
-            } else {
-                current.append(ch);
-            }
+    private void loadFromReader(BufferedReader reader) throws IOException {
+        // Load the spreadsheet from a reader (used by loadFromS2vString).
+        // All raw contents are read first and ingested in one batch.
+        List<CellAddress> addresses = new ArrayList<>();
+        List<String> contents = new ArrayList<>();
+        S2vReader.readLines(reader, (row, column, content) -> {
+            addresses.add(new CellAddress(row, column));
+            contents.add(content);
+        });
+        loadCells(addresses, contents);
+    }
+
+    private void loadCells(List<CellAddress> addresses, List<String> contents) {
+        // Bulk path for loading into an empty sheet: compile everything, build the graph in one
+        // pass, then a single topological sweep both finds cycles and recalculates every cell.
+        // No per-cell cycle check or dependent refresh happens here.
+        List<CompiledFormula> formulas = new ArrayList<>(contents.size());
+        for (int i = 0; i < contents.size(); i++) {
+            formulas.add(Cell.compileFormula(contents.get(i), addresses.get(i), shapes));
         }
 
-        tokens.add(current.toString());
-        return tokens;
+        for (int i = 0; i < addresses.size(); i++) {
+            putCell(addresses.get(i), contents.get(i), formulas.get(i));
+        }
+        recalculateLoaded();
+    }
+
+    private void recalculateLoaded() {
+        try {
+            recalculationEngine.recalculateAll();
+        } catch (FormulaException ex) {
+            // circular references in the file: do not keep a half-evaluated sheet
+            resetState();
+            throw ex;
+        }
+    }
+
+    private List<Cell> allCells() {
+        List<Cell> result = new ArrayList<>(cells.size());
+        cells.forEach(result::add);
+        return result;
     }
 
     private int getMaxRow() {
         // helper for saveToFile to determine max row
         int max = 0;
-        for (Map.Entry<CellAddress, Cell> entry : cells.entrySet()) {
+        for (Cell cell : allCells()) {
             // because of the way empty referenced cells work
             // if you referred to a far out cell (eg D2000) and saved the file,
             // the spreadsheet would save all the empty cells before it
             // to fix this we only consider non-empty cells for max calculations
-            String content = entry.getValue().getContent();
+            String content = cell.getContent();
             if (content == null || content.isEmpty()) {
                 continue;
             }
-            int row = entry.getKey().getRow();
+            int row = cell.getAddress().getRow();
             if (row > max) {
                 max = row;
             }
@@ -311,12 +582,12 @@ public class Spreadsheet implements CellLookup{
     private int getMaxColumn() {
         // helper for saveToFile to determine max column
         int max = 0;
-        for (Map.Entry<CellAddress, Cell> entry : cells.entrySet()) {
-            String content = entry.getValue().getContent();
+        for (Cell cell : allCells()) {
+            String content = cell.getContent();
             if (content == null || content.isEmpty()) {
                 continue;
             }
-            int column = entry.getKey().getColumn();
+            int column = cell.getAddress().getColumn();
             if (column > max) {
                 max = column;
             }
@@ -324,99 +595,63 @@ public class Spreadsheet implements CellLookup{
         return max;
     }
 
-    // Dependency graph
-    private Set<CellAddress> collectDependencies(String content) {
-        // Collect cell references from the formula content
-        if (content == null) {
-            return Set.of();
-        }
-        String trimmed = content.stripLeading();
-        if (!trimmed.startsWith("=")) {
-            return Set.of();
-        }
-        String formula = trimmed.substring(1);
-        List<Token> tokens = FormulaTokenizer.tokenize(formula);
-        ExpressionNode ast = ShuntingYardParser.parse(tokens);
-        return ReferenceCollector.collect(ast);
-    }
-
-    private void updateDependencies(CellAddress address,
-                                    Set<CellAddress> oldDeps,
-                                    Set<CellAddress> newDeps) {
-        // Update the dependency graph when changing cell content
-        for (CellAddress dep : oldDeps) {
-            Set<CellAddress> reverse = dependents.get(dep);
-            if (reverse != null) {
-                reverse.remove(address);
-                if (reverse.isEmpty()) {
-                    dependents.remove(dep);
-                }
-            }
-        }
-
-        if (newDeps.isEmpty()) {
-            dependencies.remove(address);
+    private void putCell(CellAddress address, String content, CompiledFormula formula) {
+        // stores new content and its edges, evaluation is left to the recalculation that follows
+        Cell cell = cells.get(address.getRow(), address.getColumn());
+        if (cell == null) {
+            cell = new Cell(this, address, "");
         } else {
-            dependencies.put(address, new HashSet<>(newDeps));
+            cell = ownedCell(cell);
         }
+        cell.setContent(content, formula);
+        // put back after every change so the store can refresh what it derives from the content
+        cells.put(cell);
+        updateDependencies(address, formula);
+    }
+
+    private static boolean isBlank(String content) {
+        return content == null || content.strip().isEmpty();
+    }
 
-        for (CellAddress dep : newDeps) {
-            dependents.computeIfAbsent(dep, key -> new HashSet<>()).add(address);
+    // Dependency graph
+    private void updateDependencies(CellAddress address, CompiledFormula formula) {
+        // Cell and range references were collected when the formula was compiled
+        if (formula == null) {
+            dependencies.removeInputs(address);
+            return;
         }
+        dependencies.setInputs(address, formula.getCellReferences(), formula.getRangeReferences());
     }
 
     private void removeCellAndEdges(CellAddress address) {
         // Added to remove the cell and its dependencies
-        cells.remove(address);
-        Set<CellAddress> oldDeps = dependencies.getOrDefault(address, Set.of());
-        updateDependencies(address, oldDeps, Set.of());
+        cells.remove(address.getRow(), address.getColumn());
+        dependencies.removeInputs(address);
     }
 
-    private boolean hasCycleFrom(CellAddress start) {
-        return dfsCycleCheck(start, new HashSet<>(), new HashSet<>());
-    }
-
-    private boolean dfsCycleCheck(CellAddress current,
-                                  Set<CellAddress> visiting,
-                                  Set<CellAddress> visited) {
-        // Simple DFS to detect cycles
-        if (visiting.contains(current)) {
-            return true;
-        }
-        if (visited.contains(current)) {
+    private boolean createsCycle(CellAddress address, CompiledFormula formula) {
+        // checked before the graph changes, so a rejected edit needs no rollback
+        if (formula == null) {
             return false;
         }
-
-        visiting.add(current);
-        for (CellAddress neighbor : dependencies.getOrDefault(current, Set.of())) {
-            if (dfsCycleCheck(neighbor, visiting, visited)) {
-                return true;
-            }
-        }
-        visiting.remove(current);
-        visited.add(current);
-        return false;
+        return dependencies.introducesCycle(address, formula.getCellReferences(), formula.getRangeReferences());
     }
 
     private void refreshDependents(CellAddress start) {
-        // Simple BFS to refresh all dependent cells
-        Deque<CellAddress> queue = new ArrayDeque<>();
-        Set<CellAddress> visited = new HashSet<>();
-
-        queue.add(start);
-        visited.add(start);
-
-        while (!queue.isEmpty()) {
-            CellAddress current = queue.removeFirst();
-            Cell cell = cells.get(current);
-            if (cell != null) {
-                cell.recalculateDisplay();
-            }
-            for (CellAddress dependent : dependents.getOrDefault(current, Set.of())) {
-                if (visited.add(dependent)) {
-                    queue.add(dependent);
-                }
-            }
+        recalculationEngine.recalculateFrom(start);
+    }
+
+    private final class LoadedCells implements S2vReader.CellSink {
+        // one chunk of a parallel load, compiled on the worker that scanned it
+        private final List<CellAddress> addresses = new ArrayList<>();
+        private final List<String> contents = new ArrayList<>();
+        private final List<CompiledFormula> formulas = new ArrayList<>();
+
+        public void accept(int row, int column, String content) {
+            CellAddress address = new CellAddress(row, column);
+            addresses.add(address);
+            contents.add(content);
+            formulas.add(Cell.compileFormula(content, address, shapes));
         }
     }
 }
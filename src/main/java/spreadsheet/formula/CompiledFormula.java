@@ -0,0 +1,77 @@
+package spreadsheet.formula;
+
+import java.util.List;
+import java.util.Set;
+
+import spreadsheet.CellAddress;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.ExecutionTier;
+import spreadsheet.formula.eval.FormulaProgram;
+import spreadsheet.formula.lexer.FormulaTokenizer;
+
+// Compiled formula of one cell: its text, its shared FormulaShape and the origin the shape's
+// relative references are resolved against. Parsing happens once per content change, and only
+// once per shape when formulas are compiled through a FormulaShapeCache.
+// Used for display evaluation, numeric evaluation and dependency collection.
+
+public final class CompiledFormula {
+    // set by FormulaJit.enable on the JVM; null means every formula is interpreted
+    private static volatile ExecutionTier executionTier;
+
+    private final String expression;
+    private final FormulaShape shape;
+    private final int originRow;
+    private final int originColumn;
+
+    CompiledFormula(String expression, FormulaShape shape, int originRow, int originColumn) {
+        this.expression = expression;
+        this.shape = shape;
+        this.originRow = originRow;
+        this.originColumn = originColumn;
+    }
+
+    public static CompiledFormula compile(String expression) {
+        // throws FormulaException for malformed formulas, same as the old parse-on-evaluate path.
+        // Origin (0, 0): references stay absolute, nothing is shared.
+        return compile(expression, 0, 0);
+    }
+
+    public static CompiledFormula compile(String expression, int row, int column) {
+        FormulaShape shape = FormulaShape.compile(FormulaTokenizer.tokenize(expression), row, column);
+        return new CompiledFormula(expression, shape, row, column);
+    }
+
+    public static CompiledFormula restore(String expression, FormulaShape shape, int row, int column) {
+        // for binary snapshots: the shape was stored compiled, the expression is only kept as text
+        return new CompiledFormula(expression, shape, row, column);
+    }
+
+    public String getExpression() { return expression; }
+
+    public FormulaShape getShape() { return shape; }
+
+    // the program's references are relative to (originRow, originColumn)
+    public FormulaProgram getProgram() { return shape.getProgram(); }
+
+    public int getOriginRow() { return originRow; }
+
+    public int getOriginColumn() { return originColumn; }
+
+    // resolved on request, copies share only the offsets
+    public Set<CellAddress> getCellReferences() { return shape.cellReferencesAt(originRow, originColumn); }
+
+    public List<RangeBounds> getRangeReferences() { return shape.rangeReferencesAt(originRow, originColumn); }
+
+    public static void setExecutionTier(ExecutionTier tier) {
+        executionTier = tier;
+    }
+
+    static ExecutionTier getExecutionTier() {
+        return executionTier;
+    }
+
+    public double evaluate(CellLookup lookup) {
+        return shape.evaluate(lookup, originRow, originColumn);
+    }
+}
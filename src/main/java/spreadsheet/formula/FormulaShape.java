@@ -0,0 +1,173 @@
+package spreadsheet.formula;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spreadsheet.CellAddress;
+import spreadsheet.formula.ast.ExpressionNode;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.ast.ReferenceCollector;
+import spreadsheet.formula.ast.ReferenceNode;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.CompiledExpression;
+import spreadsheet.formula.eval.ExecutionTier;
+import spreadsheet.formula.eval.FormulaCompiler;
+import spreadsheet.formula.eval.FormulaProgram;
+import spreadsheet.formula.lexer.Token;
+import spreadsheet.formula.lexer.TokenType;
+import spreadsheet.formula.parser.ShuntingYardParser;
+
+// The position-independent part of a formula: program and references as offsets from the cell
+// that holds it, R1C1 style. "=A1*B1" in C1 and "=A2*B2" in C2 have the same shape
+// (R[0]C[-2]*R[0]C[-1]), so a FormulaShapeCache parses and compiles it once for all copies.
+// Hot shapes are also where the optional execution tier is attached.
+
+public final class FormulaShape {
+    // evaluations value once a thread has taken the shape to the tier
+    private static final int CLAIMED = Integer.MIN_VALUE;
+
+    private final FormulaProgram program;
+    // (row, column) offset pairs of the single references, without duplicates
+    private final int[] cellOffsets;
+    private final List<RangeBounds> rangeOffsets;
+    // Shapes are shared by every copy of a formula and evaluated from several threads by the
+    // parallel scheduler and scenario sweeps, so the count is atomic and the result volatile.
+    private final AtomicInteger evaluations = new AtomicInteger();
+    private volatile CompiledExpression compiled;
+
+    private FormulaShape(FormulaProgram program, int[] cellOffsets, List<RangeBounds> rangeOffsets) {
+        this.program = program;
+        this.cellOffsets = cellOffsets;
+        this.rangeOffsets = rangeOffsets;
+    }
+
+    static FormulaShape compile(List<Token> tokens, int originRow, int originColumn) {
+        // throws FormulaException for malformed formulas
+        ExpressionNode ast = ShuntingYardParser.parse(tokens);
+        FormulaProgram program = FormulaCompiler.compile(ast, originRow, originColumn);
+
+        Set<CellAddress> cells = ReferenceCollector.collectCells(ast);
+        int[] cellOffsets = new int[cells.size() * 2];
+        int i = 0;
+        for (CellAddress cell : cells) {
+            cellOffsets[i++] = cell.getRow() - originRow;
+            cellOffsets[i++] = cell.getColumn() - originColumn;
+        }
+        // ranges stay rectangles so SUM(A1:A100000) costs one dependency, not 100000
+        List<RangeBounds> ranges = ReferenceCollector.collectRanges(ast);
+        List<RangeBounds> rangeOffsets = new ArrayList<>(ranges.size());
+        for (RangeBounds range : ranges) {
+            rangeOffsets.add(range.translate(-originRow, -originColumn));
+        }
+        return new FormulaShape(program, cellOffsets,
+            Collections.unmodifiableList(rangeOffsets));
+    }
+
+    static String keyOf(List<Token> tokens, int originRow, int originColumn) {
+        // token text with references rewritten as offsets; tokens never contain spaces,
+        // so joining with one keeps different token sequences apart.
+        // Returns null for an unreadable reference, the parser reports that one.
+        StringBuilder key = new StringBuilder();
+        for (Token token : tokens) {
+            if (token.getType() == TokenType.EOF) {
+                break;
+            }
+            if (token.getType() == TokenType.REFERENCE) {
+                ReferenceNode reference;
+                try {
+                    reference = new ReferenceNode(token.getLexeme());
+                } catch (IllegalArgumentException ex) {
+                    return null;
+                }
+                key.append('R').append(reference.getRowIndex() - originRow)
+                    .append('C').append(reference.getColumnIndex() - originColumn);
+            } else if (token.getType() == TokenType.IDENT) {
+                key.append(token.getLexeme().toUpperCase());
+            } else {
+                key.append(token.getLexeme());
+            }
+            key.append(' ');
+        }
+        return key.toString();
+    }
+
+    public FormulaProgram getProgram() { return program; }
+
+    public void writeTo(DataOutput out) throws IOException {
+        // the compiled program plus the reference offsets: everything compile derives from the text
+        program.writeTo(out);
+        out.writeInt(cellOffsets.length);
+        for (int offset : cellOffsets) {
+            out.writeInt(offset);
+        }
+        out.writeInt(rangeOffsets.size());
+        for (RangeBounds range : rangeOffsets) {
+            FormulaProgram.writeRange(out, range);
+        }
+    }
+
+    public static FormulaShape readFrom(DataInput in) throws IOException {
+        FormulaProgram program = FormulaProgram.readFrom(in);
+        int[] cellOffsets = new int[FormulaProgram.readLength(in)];
+        if (cellOffsets.length % 2 != 0) {
+            throw new IOException("Odd number of cell offsets: " + cellOffsets.length);
+        }
+        for (int i = 0; i < cellOffsets.length; i++) {
+            cellOffsets[i] = in.readInt();
+        }
+        int rangeCount = FormulaProgram.readLength(in);
+        List<RangeBounds> rangeOffsets = new ArrayList<>(rangeCount);
+        for (int i = 0; i < rangeCount; i++) {
+            rangeOffsets.add(FormulaProgram.readRange(in));
+        }
+        return new FormulaShape(program, cellOffsets, Collections.unmodifiableList(rangeOffsets));
+    }
+
+    Set<CellAddress> cellReferencesAt(int originRow, int originColumn) {
+        Set<CellAddress> cells = new HashSet<>(cellOffsets.length);
+        for (int i = 0; i < cellOffsets.length; i += 2) {
+            cells.add(new CellAddress(cellOffsets[i] + originRow, cellOffsets[i + 1] + originColumn));
+        }
+        return cells;
+    }
+
+    List<RangeBounds> rangeReferencesAt(int originRow, int originColumn) {
+        if (originRow == 0 && originColumn == 0) {
+            return rangeOffsets;
+        }
+        List<RangeBounds> ranges = new ArrayList<>(rangeOffsets.size());
+        for (RangeBounds range : rangeOffsets) {
+            ranges.add(range.translate(originRow, originColumn));
+        }
+        return ranges;
+    }
+
+    double evaluate(CellLookup lookup, int originRow, int originColumn) {
+        CompiledExpression fast = compiled;
+        if (fast != null) {
+            return fast.eval(lookup, originRow, originColumn);
+        }
+        ExecutionTier tier = CompiledFormula.getExecutionTier();
+        if (tier != null && evaluations.get() >= 0) {
+            // Asked once per shape, so all copies of a formula count toward the threshold. Racing
+            // threads may all pass the threshold; the compare-and-set lets one of them compile.
+            // A failed translation keeps the interpreter.
+            int count = evaluations.incrementAndGet();
+            if (count >= tier.threshold() && evaluations.compareAndSet(count, CLAIMED)) {
+                fast = tier.compile(program);
+                compiled = fast;
+                if (fast != null) {
+                    return fast.eval(lookup, originRow, originColumn);
+                }
+            }
+        }
+        return program.evaluate(lookup, originRow, originColumn);
+    }
+}
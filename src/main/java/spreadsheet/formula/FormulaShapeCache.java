@@ -0,0 +1,89 @@
+package spreadsheet.formula;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import spreadsheet.formula.lexer.FormulaTokenizer;
+import spreadsheet.formula.lexer.Token;
+
+// Interns formula shapes for one spreadsheet and its forks.
+// A formula copied down 100k rows is tokenized per row (that is how its shape key is found)
+// but parsed, compiled and reference-collected once. The cache only holds shapes weakly: the
+// cells keep a shape alive through their CompiledFormula, so a shape whose last formula was
+// overwritten (=A1+1, =A1+2, ... typed into one cell) is dropped, together with any class the
+// execution tier generated for it. Cleared entries are removed on the next compile or size().
+// Safe to share between the threads of a parallel load: when two threads compile the same new
+// shape at once, both end up with the one that was stored first.
+
+public final class FormulaShapeCache {
+    private final Map<String, ShapeReference> shapes = new ConcurrentHashMap<>();
+    private final ReferenceQueue<FormulaShape> released = new ReferenceQueue<>();
+
+    public CompiledFormula compile(String expression, int row, int column) {
+        // throws FormulaException for malformed formulas; failures are not cached
+        removeReleased();
+        List<Token> tokens = FormulaTokenizer.tokenize(expression);
+        String key = FormulaShape.keyOf(tokens, row, column);
+        FormulaShape shape = null;
+        if (key != null) {
+            ShapeReference stored = shapes.get(key);
+            shape = (stored == null) ? null : stored.get();
+        }
+        if (shape == null) {
+            shape = FormulaShape.compile(tokens, row, column);
+            if (key != null) {
+                shape = intern(key, shape);
+            }
+        }
+        return new CompiledFormula(expression, shape, row, column);
+    }
+
+    public int size() {
+        removeReleased();
+        return shapes.size();
+    }
+
+    public void clear() {
+        shapes.clear();
+    }
+
+    private FormulaShape intern(String key, FormulaShape shape) {
+        // the stored shape if it is still alive, otherwise `shape` takes the entry over
+        ShapeReference fresh = new ShapeReference(key, shape, released);
+        while (true) {
+            ShapeReference stored = shapes.putIfAbsent(key, fresh);
+            if (stored == null) {
+                return shape;
+            }
+            FormulaShape existing = stored.get();
+            if (existing != null) {
+                return existing;
+            }
+            if (shapes.replace(key, stored, fresh)) {
+                return shape;
+            }
+        }
+    }
+
+    private void removeReleased() {
+        Reference<? extends FormulaShape> reference;
+        while ((reference = released.poll()) != null) {
+            ShapeReference cleared = (ShapeReference) reference;
+            // a later shape may already have taken the key over
+            shapes.remove(cleared.key, cleared);
+        }
+    }
+
+    private static final class ShapeReference extends WeakReference<FormulaShape> {
+        private final String key;
+
+        private ShapeReference(String key, FormulaShape shape, ReferenceQueue<FormulaShape> queue) {
+            super(shape, queue);
+            this.key = key;
+        }
+    }
+}
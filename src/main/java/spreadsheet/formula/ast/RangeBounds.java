@@ -17,4 +17,31 @@ public class RangeBounds {
     public int getRowMax() { return rowMax; }
     public int getColMin() { return colMin; }
     public int getColMax() { return colMax; }
+
+    public int getHeight() { return rowMax - rowMin + 1; }
+    public int getWidth() { return colMax - colMin + 1; }
+
+    public RangeBounds translate(int rowOffset, int columnOffset) {
+        if (rowOffset == 0 && columnOffset == 0) {
+            return this;
+        }
+        return new RangeBounds(rowMin + rowOffset, colMin + columnOffset, rowMax + rowOffset, colMax + columnOffset);
+    }
+
+    public boolean contains(int row, int column) {
+        return row >= rowMin && row <= rowMax && column >= colMin && column <= colMax;
+    }
+
+    public int hashCode() {
+        return ((rowMin * 31 + rowMax) * 31 + colMin) * 31 + colMax;
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) return true;
+        if (!(obj instanceof RangeBounds)) return false;
+
+        RangeBounds other = (RangeBounds) obj;
+        return rowMin == other.rowMin && rowMax == other.rowMax
+            && colMin == other.colMin && colMax == other.colMax;
+    }
 }
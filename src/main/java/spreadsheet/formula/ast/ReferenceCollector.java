@@ -1,6 +1,8 @@
 package spreadsheet.formula.ast;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import spreadsheet.CellAddress;
@@ -10,39 +12,63 @@ public final class ReferenceCollector {
     }
 
     public static Set<CellAddress> collect(ExpressionNode node) {
+        // every referenced cell, with ranges expanded cell by cell
         Set<CellAddress> refs = new HashSet<>();
-        collectInto(node, refs);
+        collectInto(node, refs, null, true);
         return refs;
     }
 
-    private static void collectInto(ExpressionNode node, Set<CellAddress> refs) {
+    public static Set<CellAddress> collectCells(ExpressionNode node) {
+        // single cell references only, ranges are left to collectRanges
+        Set<CellAddress> refs = new HashSet<>();
+        collectInto(node, refs, null, false);
+        return refs;
+    }
+
+    public static List<RangeBounds> collectRanges(ExpressionNode node) {
+        List<RangeBounds> ranges = new ArrayList<>();
+        collectInto(node, null, ranges, false);
+        return ranges;
+    }
+
+    private static void collectInto(ExpressionNode node,
+                                    Set<CellAddress> refs,
+                                    List<RangeBounds> ranges,
+                                    boolean expandRanges) {
         if (node == null) {
             return;
         }
         if (node instanceof ReferenceNode) {
-            ReferenceNode ref = (ReferenceNode) node;
-            refs.add(new CellAddress(ref.getRowIndex(), ref.getColumnIndex()));
+            if (refs != null) {
+                ReferenceNode ref = (ReferenceNode) node;
+                refs.add(new CellAddress(ref.getRowIndex(), ref.getColumnIndex()));
+            }
             return;
         }
         if (node instanceof RangeNode) {
             RangeBounds bounds = ((RangeNode) node).toBounds();
-            for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
-                for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
-                    refs.add(new CellAddress(r, c));
+            if (ranges != null && !ranges.contains(bounds)) {
+                ranges.add(bounds);
+            }
+            if (refs != null && expandRanges) {
+                for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
+                    for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
+                        refs.add(new CellAddress(r, c));
+                    }
                 }
             }
             return;
         }
         if (node instanceof FunctionCallNode) {
             for (ExpressionNode arg : ((FunctionCallNode) node).getArgs()) {
-                collectInto(arg, refs);
+                collectInto(arg, refs, ranges, expandRanges);
             }
             return;
         }
         if (node instanceof BinaryOpNode) {
             BinaryOpNode bin = (BinaryOpNode) node;
-            collectInto(bin.getLeft(), refs);
-            collectInto(bin.getRight(), refs);
+            collectInto(bin.getLeft(), refs, ranges, expandRanges);
+            collectInto(bin.getRight(), refs, ranges, expandRanges);
         }
     }
 }
@@ -1,6 +1,10 @@
 package spreadsheet.formula.eval;
 
 import java.util.OptionalDouble;
+import java.util.function.DoubleConsumer;
+
+import spreadsheet.formula.ast.RangeBounds;
+
 @FunctionalInterface
 public interface CellLookup {
     double findCell(int rowIndex, int columnIndex);
@@ -8,4 +12,25 @@ public interface CellLookup {
     default OptionalDouble findCellOptional(int rowIndex, int columnIndex) {
         return OptionalDouble.of(findCell(rowIndex, columnIndex));
     }
+
+    default void forEachValue(RangeBounds bounds, DoubleConsumer consumer) {
+        // visits the value of every non-empty cell in the range, row by row.
+        // Lookups backed by a real store override this to scan it directly.
+        for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
+            for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
+                OptionalDouble value = findCellOptional(r, c);
+                if (value.isPresent()) {
+                    consumer.accept(value.getAsDouble());
+                }
+            }
+        }
+    }
+
+    default void readColumn(int firstRow, int column, double[] out) {
+        // findCell for rows firstRow .. firstRow + out.length - 1 of one column,
+        // used when a run of copied formulas is evaluated together
+        for (int i = 0; i < out.length; i++) {
+            out[i] = findCell(firstRow + i, column);
+        }
+    }
 }
@@ -0,0 +1,9 @@
+package spreadsheet.formula.eval;
+
+// A formula translated to something faster than the FormulaProgram interpreter,
+// e.g. a generated JVM class. Must behave exactly like the program it came from,
+// including the origin that relative references are resolved against.
+
+public interface CompiledExpression {
+    double eval(CellLookup lookup, int originRow, int originColumn);
+}
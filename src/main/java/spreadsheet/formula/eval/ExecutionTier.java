@@ -0,0 +1,12 @@
+package spreadsheet.formula.eval;
+
+// Optional faster tier for hot formulas. CompiledFormula counts evaluations and asks the tier
+// once, after `threshold()` of them. Nothing is installed by default, so builds without
+// runtime code generation (TeaVM) never reach an implementation.
+
+public interface ExecutionTier {
+    int threshold();
+
+    // returns null when the program cannot be translated; the formula then stays interpreted
+    CompiledExpression compile(FormulaProgram program);
+}
@@ -0,0 +1,162 @@
+package spreadsheet.formula.eval;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.ast.BinaryOpNode;
+import spreadsheet.formula.ast.ExpressionNode;
+import spreadsheet.formula.ast.FunctionCallNode;
+import spreadsheet.formula.ast.NumberNode;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.ast.RangeNode;
+import spreadsheet.formula.ast.ReferenceNode;
+import spreadsheet.formula.functions.FunctionType;
+
+// Turns a parsed formula into a FormulaProgram.
+// Post-order walk of the AST: operands are emitted before their operator, function arguments
+// between BEGIN_AGG and END_AGG. Stack depths are tracked while emitting so evaluation can
+// size its arrays once.
+
+public final class FormulaCompiler {
+    private int[] code = new int[16];
+    private int length;
+    private final List<Double> constants = new ArrayList<>();
+    private final List<RangeBounds> ranges = new ArrayList<>();
+    private int depth;
+    private int maxDepth;
+    private int calls;
+    private int maxCalls;
+    private final int originRow;
+    private final int originColumn;
+
+    private FormulaCompiler(int originRow, int originColumn) {
+        this.originRow = originRow;
+        this.originColumn = originColumn;
+    }
+
+    public static FormulaProgram compile(ExpressionNode ast) {
+        return compile(ast, 0, 0);
+    }
+
+    public static FormulaProgram compile(ExpressionNode ast, int originRow, int originColumn) {
+        // throws FormulaException for trees the evaluator would reject, so errors surface at edit time.
+        // References are emitted relative to the origin.
+        FormulaCompiler compiler = new FormulaCompiler(originRow, originColumn);
+        compiler.emitNode(ast);
+
+        double[] constantValues = new double[compiler.constants.size()];
+        for (int i = 0; i < constantValues.length; i++) {
+            constantValues[i] = compiler.constants.get(i);
+        }
+        return new FormulaProgram(
+            Arrays.copyOf(compiler.code, compiler.length),
+            constantValues,
+            compiler.ranges.toArray(new RangeBounds[0]),
+            Math.max(compiler.maxDepth, 1),
+            compiler.maxCalls
+        );
+    }
+
+    private void emitNode(ExpressionNode node) {
+        if (node instanceof NumberNode) {
+            emit(FormulaProgram.PUSH_CONST, addConstant((NumberNode) node));
+            push();
+            return;
+        }
+        if (node instanceof ReferenceNode) {
+            ReferenceNode ref = (ReferenceNode) node;
+            emit(FormulaProgram.LOAD_CELL, ref.getRowIndex() - originRow, ref.getColumnIndex() - originColumn);
+            push();
+            return;
+        }
+        if (node instanceof RangeNode) {
+            throw new FormulaException("Range only allowed inside function");
+        }
+        if (node instanceof FunctionCallNode) {
+            emitFunction((FunctionCallNode) node);
+            return;
+        }
+        if (node instanceof BinaryOpNode) {
+            BinaryOpNode opNode = (BinaryOpNode) node;
+            int opcode = opcodeFor(opNode);
+            emitNode(opNode.getLeft());
+            ExpressionNode right = opNode.getRight();
+            if (right instanceof NumberNode) {
+                // fused: operate on the top of the stack with a literal
+                emit(opcode + FormulaProgram.ADD_CONST - FormulaProgram.ADD, addConstant((NumberNode) right));
+            } else if (right instanceof ReferenceNode) {
+                ReferenceNode ref = (ReferenceNode) right;
+                emit(opcode + FormulaProgram.ADD_CELL - FormulaProgram.ADD, ref.getRowIndex() - originRow, ref.getColumnIndex() - originColumn);
+            } else {
+                emitNode(right);
+                emit(opcode);
+                depth--;
+            }
+            return;
+        }
+        throw new FormulaException("Unknown expression node: " + node.getClass().getSimpleName());
+    }
+
+    private void emitFunction(FunctionCallNode node) {
+        FunctionType type;
+        try {
+            type = FunctionType.fromName(node.getName());
+        } catch (IllegalArgumentException ex) {
+            throw new FormulaException(ex.getMessage(), ex);
+        }
+        emit(FormulaProgram.BEGIN_AGG, type.ordinal());
+        calls++;
+        maxCalls = Math.max(maxCalls, calls);
+        for (ExpressionNode arg : node.getArgs()) {
+            if (arg instanceof RangeNode) {
+                emit(FormulaProgram.AGG_RANGE, ranges.size());
+                ranges.add(((RangeNode) arg).toBounds().translate(-originRow, -originColumn));
+            } else if (arg instanceof ReferenceNode) {
+                ReferenceNode ref = (ReferenceNode) arg;
+                emit(FormulaProgram.AGG_CELL, ref.getRowIndex() - originRow, ref.getColumnIndex() - originColumn);
+            } else {
+                emitNode(arg);
+                emit(FormulaProgram.AGG_VALUE);
+                depth--;
+            }
+        }
+        emit(FormulaProgram.END_AGG);
+        calls--;
+        push();
+    }
+
+    private int addConstant(NumberNode node) {
+        constants.add(node.getValue());
+        return constants.size() - 1;
+    }
+
+    private static int opcodeFor(BinaryOpNode node) {
+        switch (node.getOperator()) {
+            case PLUS:
+                return FormulaProgram.ADD;
+            case MINUS:
+                return FormulaProgram.SUB;
+            case MULTIPLY:
+                return FormulaProgram.MUL;
+            case DIVIDE:
+                return FormulaProgram.DIV;
+            default:
+                throw new FormulaException("Unknown operator: " + node.getOperator());
+        }
+    }
+
+    private void push() {
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    private void emit(int... words) {
+        if (length + words.length > code.length) {
+            code = Arrays.copyOf(code, Math.max(code.length * 2, length + words.length));
+        }
+        System.arraycopy(words, 0, code, length, words.length);
+        length += words.length;
+    }
+}
@@ -1,18 +1,13 @@
 package spreadsheet.formula.eval;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.OptionalDouble;
-
 import spreadsheet.exceptions.FormulaException;
 import spreadsheet.formula.ast.BinaryOpNode;
 import spreadsheet.formula.ast.ExpressionNode;
 import spreadsheet.formula.ast.FunctionCallNode;
 import spreadsheet.formula.ast.NumberNode;
-import spreadsheet.formula.ast.RangeBounds;
 import spreadsheet.formula.ast.RangeNode;
 import spreadsheet.formula.ast.ReferenceNode;
-import spreadsheet.formula.functions.FunctionEvaluator;
+import spreadsheet.formula.functions.Accumulator;
 import spreadsheet.formula.functions.FunctionType;
 import spreadsheet.formula.lexer.TokenType;
 
@@ -55,47 +50,39 @@ public final class FormulaEvaluator {
     }
 
     private static double evaluateFunction(FunctionCallNode node, CellLookup lookup) {
-        // for a function call, collect argument values and evaluate
+        // for a function call, stream argument values into the function's accumulator
         FunctionType type = FunctionType.fromName(node.getName());
-        List<Double> values = new ArrayList<>();
+        Accumulator accumulator = type.newAccumulator();
         for (ExpressionNode arg : node.getArgs()) {
-            collectValues(arg, values, lookup);
+            collectValues(arg, accumulator, lookup);
         }
         try {
-            return FunctionEvaluator.evaluate(type, values);
+            return accumulator.result();
         } catch (IllegalArgumentException ex) {
             throw new FormulaException(ex.getMessage(), ex);
         }
     }
 
     private static void collectValues(ExpressionNode arg,
-                                      List<Double> values,
+                                      Accumulator accumulator,
                                       CellLookup lookup) {
-        // helper to collect values from an argument node
+        // helper to push the values of an argument node
         if (arg instanceof RangeNode) {
-            addRangeValues((RangeNode) arg, values, lookup);
+            addRangeValues((RangeNode) arg, accumulator, lookup);
             return;
         }
-        values.add(evaluateNode(arg, lookup));
+        accumulator.accept(evaluateNode(arg, lookup));
     }
 
     private static void addRangeValues(RangeNode range,
-                                       List<Double> values,
+                                       Accumulator accumulator,
                                        CellLookup lookup) {
-        // helper to add all cell values from a range
+        // helper to push all cell values from a range
         // skips empty cells
         if (lookup == null) {
             throw new FormulaException("Cell lookup not provided");
         }
-        RangeBounds bounds = range.toBounds();
-        for (int r = bounds.getRowMin(); r <= bounds.getRowMax(); r++) {
-            for (int c = bounds.getColMin(); c <= bounds.getColMax(); c++) {
-                OptionalDouble value = lookup.findCellOptional(r, c);
-                if (value.isPresent()) {
-                    values.add(value.getAsDouble());
-                }
-            }
-        }
+        lookup.forEachValue(range.toBounds(), accumulator);
     }
 
     private static double applyOperator(TokenType op, double left, double right) {
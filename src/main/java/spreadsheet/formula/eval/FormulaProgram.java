@@ -0,0 +1,378 @@
+package spreadsheet.formula.eval;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.functions.Accumulator;
+import spreadsheet.formula.functions.FunctionType;
+
+// Postfix form of a formula, produced by FormulaCompiler.
+// Opcodes and their operands sit inline in one int[]; number literals and ranges live in side
+// tables referenced by index. Evaluation is a single loop over the code with a double stack,
+// so no node objects are visited and nothing is dispatched through instanceof.
+// Cell and range operands are offsets from an origin cell, so one program serves every copy
+// of a formula (=A1*B1 in C1 and =A2*B2 in C2); with origin (0, 0) they are plain addresses.
+
+public final class FormulaProgram {
+    // opcode           operands
+    public static final int PUSH_CONST = 0; // constant index
+    public static final int LOAD_CELL = 1; // row, column
+    public static final int ADD = 2;
+    public static final int SUB = 3;
+    public static final int MUL = 4;
+    public static final int DIV = 5;
+    public static final int BEGIN_AGG = 6; // FunctionType ordinal
+    public static final int AGG_VALUE = 7; // pops a value into the innermost function call
+    public static final int AGG_RANGE = 8; // range index
+    public static final int END_AGG = 9; // pushes the result of the innermost function call
+    // fused forms for the common "x op literal" and "x op cell" shapes, which skip a push/pop
+    public static final int ADD_CONST = 10; // constant index
+    public static final int SUB_CONST = 11; // constant index
+    public static final int MUL_CONST = 12; // constant index
+    public static final int DIV_CONST = 13; // constant index
+    public static final int ADD_CELL = 14; // row, column
+    public static final int SUB_CELL = 15; // row, column
+    public static final int MUL_CELL = 16; // row, column
+    public static final int DIV_CELL = 17; // row, column
+    public static final int AGG_CELL = 18; // row, column
+
+    private static final FunctionType[] FUNCTIONS = FunctionType.values();
+
+    private final int[] code;
+    private final double[] constants;
+    private final RangeBounds[] ranges;
+    private final int maxStack;
+    private final int maxCalls;
+
+    FormulaProgram(int[] code, double[] constants, RangeBounds[] ranges, int maxStack, int maxCalls) {
+        this.code = code;
+        this.constants = constants;
+        this.ranges = ranges;
+        this.maxStack = maxStack;
+        this.maxCalls = maxCalls;
+    }
+
+    // copies, for tiers that translate the program further (see spreadsheet.formula.jit)
+    public int[] getCode() { return code.clone(); }
+
+    public double[] getConstants() { return constants.clone(); }
+
+    public RangeBounds[] getRanges() { return ranges.clone(); }
+
+    public int getMaxCalls() { return maxCalls; }
+
+    public void writeTo(DataOutput out) throws IOException {
+        // stored form for binary snapshots, read back by readFrom without parsing anything
+        out.writeInt(code.length);
+        for (int word : code) {
+            out.writeInt(word);
+        }
+        out.writeInt(constants.length);
+        for (double constant : constants) {
+            out.writeDouble(constant);
+        }
+        out.writeInt(ranges.length);
+        for (RangeBounds range : ranges) {
+            writeRange(out, range);
+        }
+        out.writeInt(maxStack);
+        out.writeInt(maxCalls);
+    }
+
+    public static FormulaProgram readFrom(DataInput in) throws IOException {
+        // the code is checked before it is trusted, a damaged file must not run off the stacks
+        int[] code = new int[readLength(in)];
+        for (int i = 0; i < code.length; i++) {
+            code[i] = in.readInt();
+        }
+        double[] constants = new double[readLength(in)];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = in.readDouble();
+        }
+        RangeBounds[] ranges = new RangeBounds[readLength(in)];
+        for (int i = 0; i < ranges.length; i++) {
+            ranges[i] = readRange(in);
+        }
+        FormulaProgram program = new FormulaProgram(code, constants, ranges, in.readInt(), in.readInt());
+        program.verify();
+        return program;
+    }
+
+    public static void writeRange(DataOutput out, RangeBounds range) throws IOException {
+        out.writeInt(range.getRowMin());
+        out.writeInt(range.getColMin());
+        out.writeInt(range.getRowMax());
+        out.writeInt(range.getColMax());
+    }
+
+    public static RangeBounds readRange(DataInput in) throws IOException {
+        return new RangeBounds(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+    }
+
+    public static int readLength(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Negative length in formula data: " + length);
+        }
+        return length;
+    }
+
+    private void verify() throws IOException {
+        // replays the stack effect of every instruction against the declared limits
+        int sp = 0;
+        int cp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            int operands = (op == LOAD_CELL || (op >= ADD_CELL && op <= AGG_CELL)) ? 2
+                : (op == PUSH_CONST || op == BEGIN_AGG || op == AGG_RANGE || (op >= ADD_CONST && op <= DIV_CONST)) ? 1
+                : 0;
+            if (op < PUSH_CONST || op > AGG_CELL || pc + operands > code.length) {
+                throw new IOException("Invalid formula code at " + (pc - 1));
+            }
+            int operand = (operands > 0) ? code[pc] : 0;
+            pc += operands;
+            boolean valid;
+            if (op == PUSH_CONST || op == LOAD_CELL) {
+                valid = (op == LOAD_CELL || operand >= 0 && operand < constants.length) && ++sp <= maxStack;
+            } else if (op >= ADD && op <= DIV) {
+                valid = sp-- >= 2;
+            } else if (op == BEGIN_AGG) {
+                valid = operand >= 0 && operand < FUNCTIONS.length && ++cp <= maxCalls;
+            } else if (op == AGG_VALUE) {
+                valid = cp > 0 && sp-- >= 1;
+            } else if (op == AGG_RANGE) {
+                valid = cp > 0 && operand >= 0 && operand < ranges.length;
+            } else if (op == END_AGG) {
+                valid = cp-- > 0 && ++sp <= maxStack;
+            } else if (op >= ADD_CONST && op <= DIV_CONST) {
+                valid = sp >= 1 && operand >= 0 && operand < constants.length;
+            } else if (op == AGG_CELL) {
+                valid = cp > 0;
+            } else {
+                valid = sp >= 1;
+            }
+            if (!valid) {
+                throw new IOException("Invalid formula code at " + (pc - 1 - operands));
+            }
+        }
+        if (sp != 1 || cp != 0) {
+            throw new IOException("Formula code does not leave exactly one value");
+        }
+    }
+
+    public double evaluate(CellLookup lookup) {
+        return evaluate(lookup, 0, 0);
+    }
+
+    public double evaluate(CellLookup lookup, int originRow, int originColumn) {
+        // fresh stacks per call: evaluating one cell can evaluate others through the lookup
+        double[] stack = new double[maxStack];
+        Accumulator[] calls = (maxCalls == 0) ? null : new Accumulator[maxCalls];
+        int[] code = this.code;
+        int sp = 0;
+        int cp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            switch (code[pc++]) {
+                case PUSH_CONST:
+                    stack[sp++] = constants[code[pc++]];
+                    break;
+                case LOAD_CELL:
+                    requireLookup(lookup);
+                    stack[sp++] = lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn);
+                    pc += 2;
+                    break;
+                case ADD:
+                    sp--;
+                    stack[sp - 1] += stack[sp];
+                    break;
+                case SUB:
+                    sp--;
+                    stack[sp - 1] -= stack[sp];
+                    break;
+                case MUL:
+                    sp--;
+                    stack[sp - 1] *= stack[sp];
+                    break;
+                case DIV:
+                    sp--;
+                    stack[sp - 1] = divide(stack[sp - 1], stack[sp]);
+                    break;
+                case BEGIN_AGG:
+                    calls[cp++] = FUNCTIONS[code[pc++]].newAccumulator();
+                    break;
+                case AGG_VALUE:
+                    calls[cp - 1].accept(stack[--sp]);
+                    break;
+                case AGG_RANGE:
+                    requireLookup(lookup);
+                    lookup.forEachValue(ranges[code[pc++]].translate(originRow, originColumn), calls[cp - 1]);
+                    break;
+                case END_AGG:
+                    stack[sp++] = result(calls[--cp]);
+                    break;
+                case ADD_CONST:
+                    stack[sp - 1] += constants[code[pc++]];
+                    break;
+                case SUB_CONST:
+                    stack[sp - 1] -= constants[code[pc++]];
+                    break;
+                case MUL_CONST:
+                    stack[sp - 1] *= constants[code[pc++]];
+                    break;
+                case DIV_CONST:
+                    stack[sp - 1] = divide(stack[sp - 1], constants[code[pc++]]);
+                    break;
+                case ADD_CELL:
+                    requireLookup(lookup);
+                    stack[sp - 1] += lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn);
+                    pc += 2;
+                    break;
+                case SUB_CELL:
+                    requireLookup(lookup);
+                    stack[sp - 1] -= lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn);
+                    pc += 2;
+                    break;
+                case MUL_CELL:
+                    requireLookup(lookup);
+                    stack[sp - 1] *= lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn);
+                    pc += 2;
+                    break;
+                case DIV_CELL:
+                    requireLookup(lookup);
+                    stack[sp - 1] = divide(stack[sp - 1], lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn));
+                    pc += 2;
+                    break;
+                case AGG_CELL:
+                    requireLookup(lookup);
+                    calls[cp - 1].accept(lookup.findCell(code[pc] + originRow, code[pc + 1] + originColumn));
+                    pc += 2;
+                    break;
+                default:
+                    throw new FormulaException("Unknown opcode: " + code[pc - 1]);
+            }
+        }
+        return stack[0];
+    }
+
+    public boolean isVectorizable() {
+        // function calls keep per-evaluation accumulators, only plain arithmetic runs in lanes
+        return maxCalls == 0;
+    }
+
+    public void evaluateRows(CellLookup lookup, int firstRow, int column, double[] out) {
+        // Evaluates the program for origins (firstRow + i, column), i < out.length, in one pass:
+        // every instruction is dispatched once and applied to all rows, cell operands are read
+        // a column at a time. Throws like evaluate() when any row fails; callers then fall back
+        // to evaluating the rows one by one to find out which.
+        if (!isVectorizable()) {
+            throw new IllegalStateException("Program has function calls");
+        }
+        int rows = out.length;
+        double[][] lanes = new double[maxStack + 1][];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new double[rows];
+        }
+        // the extra lane holds fused cell operands
+        double[] operand = lanes[maxStack];
+        int sp = 0;
+        int pc = 0;
+        while (pc < code.length) {
+            int op = code[pc++];
+            switch (op) {
+                case PUSH_CONST:
+                    Arrays.fill(lanes[sp++], constants[code[pc++]]);
+                    break;
+                case LOAD_CELL:
+                    requireLookup(lookup);
+                    lookup.readColumn(firstRow + code[pc], column + code[pc + 1], lanes[sp++]);
+                    pc += 2;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                    sp--;
+                    applyLanes(op, lanes[sp - 1], lanes[sp]);
+                    break;
+                case ADD_CONST:
+                case SUB_CONST:
+                case MUL_CONST:
+                case DIV_CONST:
+                    Arrays.fill(operand, constants[code[pc++]]);
+                    applyLanes(op - ADD_CONST + ADD, lanes[sp - 1], operand);
+                    break;
+                case ADD_CELL:
+                case SUB_CELL:
+                case MUL_CELL:
+                case DIV_CELL:
+                    requireLookup(lookup);
+                    lookup.readColumn(firstRow + code[pc], column + code[pc + 1], operand);
+                    pc += 2;
+                    applyLanes(op - ADD_CELL + ADD, lanes[sp - 1], operand);
+                    break;
+                default:
+                    throw new FormulaException("Unknown opcode: " + op);
+            }
+        }
+        System.arraycopy(lanes[0], 0, out, 0, rows);
+    }
+
+    private static void applyLanes(int op, double[] left, double[] right) {
+        // left[i] = left[i] op right[i] for all rows
+        int rows = left.length;
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < rows; i++) {
+                    left[i] += right[i];
+                }
+                break;
+            case SUB:
+                for (int i = 0; i < rows; i++) {
+                    left[i] -= right[i];
+                }
+                break;
+            case MUL:
+                for (int i = 0; i < rows; i++) {
+                    left[i] *= right[i];
+                }
+                break;
+            default:
+                for (int i = 0; i < rows; i++) {
+                    if (right[i] == 0.0) {
+                        throw new FormulaException("Division by zero");
+                    }
+                }
+                for (int i = 0; i < rows; i++) {
+                    left[i] /= right[i];
+                }
+                break;
+        }
+    }
+
+    public static double divide(double left, double right) {
+        if (right == 0.0) {
+            throw new FormulaException("Division by zero");
+        }
+        return left / right;
+    }
+
+    public static double result(Accumulator accumulator) {
+        try {
+            return accumulator.result();
+        } catch (IllegalArgumentException ex) {
+            throw new FormulaException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void requireLookup(CellLookup lookup) {
+        if (lookup == null) {
+            throw new FormulaException("Cell lookup not provided");
+        }
+    }
+}
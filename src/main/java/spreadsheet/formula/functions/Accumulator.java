@@ -0,0 +1,73 @@
+package spreadsheet.formula.functions;
+
+import java.util.function.DoubleConsumer;
+
+// Streaming state for a function call: values are pushed one at a time as arguments and
+// ranges are walked, so no list of boxed values is built. One instance per call.
+
+public abstract class Accumulator implements DoubleConsumer {
+    protected long count;
+
+    public abstract void accept(double value);
+
+    public double result() {
+        if (count == 0) {
+            throw new IllegalArgumentException("Function has no numeric values");
+        }
+        return finish();
+    }
+
+    protected abstract double finish();
+
+    static final class Sum extends Accumulator {
+        private double sum;
+
+        public void accept(double value) {
+            sum += value;
+            count++;
+        }
+
+        protected double finish() {
+            return sum;
+        }
+    }
+
+    static final class Min extends Accumulator {
+        private double min;
+
+        public void accept(double value) {
+            min = (count == 0) ? value : Math.min(min, value);
+            count++;
+        }
+
+        protected double finish() {
+            return min;
+        }
+    }
+
+    static final class Max extends Accumulator {
+        private double max;
+
+        public void accept(double value) {
+            max = (count == 0) ? value : Math.max(max, value);
+            count++;
+        }
+
+        protected double finish() {
+            return max;
+        }
+    }
+
+    static final class Average extends Accumulator {
+        private double total;
+
+        public void accept(double value) {
+            total += value;
+            count++;
+        }
+
+        protected double finish() {
+            return total / count;
+        }
+    }
+}
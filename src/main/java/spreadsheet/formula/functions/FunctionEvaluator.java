@@ -7,37 +7,12 @@ public final class FunctionEvaluator {
     }
 
     public static double evaluate(FunctionType type, List<Double> values) {
-        // simple evaluator for basic functions
-        if (values.isEmpty()) {
-            throw new IllegalArgumentException("Function has no numeric values");
-        }
-        switch (type) {
-            case SUM:
-                double sum = 0.0;
-                for (double v : values) {
-                    sum += v;
-                }
-                return sum;
-            case MIN:
-                double min = values.get(0);
-                for (double v : values) {
-                    min = Math.min(min, v);
-                }
-                return min;
-            case MAX:
-                double max = values.get(0);
-                for (double v : values) {
-                    max = Math.max(max, v);
-                }
-                return max;
-            case AVERAGE:
-                double total = 0.0;
-                for (double v : values) {
-                    total += v;
-                }
-                return total / values.size();
-            default:
-                throw new IllegalStateException("Unknown function type: " + type);
+        // simple evaluator for basic functions, for callers that already hold a list.
+        // Formula evaluation streams into the accumulator instead.
+        Accumulator accumulator = type.newAccumulator();
+        for (double v : values) {
+            accumulator.accept(v);
         }
+        return accumulator.result();
     }
 }
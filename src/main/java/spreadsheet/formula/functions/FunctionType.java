@@ -6,6 +6,21 @@ public enum FunctionType {
     MAX,
     AVERAGE;
 
+    public Accumulator newAccumulator() {
+        switch (this) {
+            case SUM:
+                return new Accumulator.Sum();
+            case MIN:
+                return new Accumulator.Min();
+            case MAX:
+                return new Accumulator.Max();
+            case AVERAGE:
+                return new Accumulator.Average();
+            default:
+                throw new IllegalStateException("Unknown function type: " + this);
+        }
+    }
+
     public static FunctionType fromName(String name) {
         String upper = name.toUpperCase();
         switch (upper) {
@@ -0,0 +1,81 @@
+package spreadsheet.formula.jit;
+
+import java.util.Arrays;
+
+// Growable big-endian byte buffer for writing class files.
+
+final class ByteVector {
+    private byte[] data = new byte[256];
+    private int length;
+
+    int length() {
+        return length;
+    }
+
+    ByteVector u1(int value) {
+        ensure(1);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    ByteVector u2(int value) {
+        ensure(2);
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    ByteVector u4(int value) {
+        ensure(4);
+        data[length++] = (byte) (value >>> 24);
+        data[length++] = (byte) (value >>> 16);
+        data[length++] = (byte) (value >>> 8);
+        data[length++] = (byte) value;
+        return this;
+    }
+
+    ByteVector u8(long value) {
+        u4((int) (value >>> 32));
+        return u4((int) value);
+    }
+
+    ByteVector bytes(ByteVector other) {
+        ensure(other.length);
+        System.arraycopy(other.data, 0, data, length, other.length);
+        length += other.length;
+        return this;
+    }
+
+    ByteVector utf8(String value) {
+        // modified UTF-8 as used by CONSTANT_Utf8, prefixed with its byte length
+        int start = length;
+        u2(0);
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x01 && c <= 0x7F) {
+                u1(c);
+            } else if (c <= 0x7FF) {
+                u1(0xC0 | (c >> 6));
+                u1(0x80 | (c & 0x3F));
+            } else {
+                u1(0xE0 | (c >> 12));
+                u1(0x80 | ((c >> 6) & 0x3F));
+                u1(0x80 | (c & 0x3F));
+            }
+        }
+        int size = length - start - 2;
+        data[start] = (byte) (size >>> 8);
+        data[start + 1] = (byte) size;
+        return this;
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, length);
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+        }
+    }
+}
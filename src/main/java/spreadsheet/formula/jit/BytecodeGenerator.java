@@ -0,0 +1,286 @@
+package spreadsheet.formula.jit;
+
+import spreadsheet.formula.eval.FormulaProgram;
+
+// Translates a FormulaProgram into a class file implementing CompiledExpression.
+// Programs are straight-line postfix code, so the JVM operand stack takes the place of the
+// interpreter's double[] and the method has no branches (and needs no StackMapTable).
+// Open function calls keep their accumulator in a local, one slot per nesting depth.
+// Cell operands are offsets, added to the origin arguments before each lookup.
+//
+//   public final class <name> implements CompiledExpression {
+//       private final RangeBounds[] ranges;
+//       public <name>(RangeBounds[] ranges) { this.ranges = ranges; }
+//       public double eval(CellLookup lookup, int originRow, int originColumn) { ... }
+//   }
+
+final class BytecodeGenerator {
+    private static final int CLASS_VERSION = 55; // Java 11
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int MAX_CODE_LENGTH = 65535;
+
+    private static final String OBJECT = "java/lang/Object";
+    private static final String EXPRESSION = "spreadsheet/formula/eval/CompiledExpression";
+    private static final String RUNTIME = "spreadsheet/formula/jit/JitRuntime";
+    private static final String LOOKUP_DESC = "Lspreadsheet/formula/eval/CellLookup;";
+    private static final String RANGE_DESC = "Lspreadsheet/formula/ast/RangeBounds;";
+    private static final String ACCUMULATOR_DESC = "Lspreadsheet/formula/functions/Accumulator;";
+    private static final String RANGES_FIELD = "ranges";
+
+    // JVM opcodes used below
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD = 0x19;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ILOAD_2 = 0x1c;
+    private static final int ILOAD_3 = 0x1d;
+    private static final int IADD = 0x60;
+    private static final int AALOAD = 0x32;
+    private static final int ASTORE = 0x3a;
+    private static final int DADD = 0x63;
+    private static final int DSUB = 0x67;
+    private static final int DMUL = 0x6b;
+    private static final int DRETURN = 0xaf;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int PUTFIELD = 0xb5;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private static final int FIRST_CALL_SLOT = 4; // 0 = this, 1 = lookup, 2 = origin row, 3 = origin column
+
+    private final String className;
+    private final ConstantPool pool = new ConstantPool();
+    private final ByteVector code = new ByteVector();
+    private int stack;
+    private int maxStack;
+
+    private BytecodeGenerator(String className) {
+        this.className = className;
+    }
+
+    static byte[] generate(String className, FormulaProgram program) {
+        // null when the program does not fit in one method
+        return new BytecodeGenerator(className).generateClass(program);
+    }
+
+    private byte[] generateClass(FormulaProgram program) {
+        int thisClass = pool.classRef(className);
+        int superClass = pool.classRef(OBJECT);
+        int expression = pool.classRef(EXPRESSION);
+        int rangesName = pool.utf8(RANGES_FIELD);
+        int rangesDesc = pool.utf8("[" + RANGE_DESC);
+        int codeName = pool.utf8("Code");
+
+        byte[] evalCode = translate(program);
+        if (evalCode == null) {
+            return null;
+        }
+        int evalMaxStack = maxStack;
+
+        ByteVector methods = new ByteVector();
+        writeConstructor(methods, codeName);
+        methods.u2(ACC_PUBLIC)
+            .u2(pool.utf8("eval"))
+            .u2(pool.utf8("(" + LOOKUP_DESC + "II)D"));
+        writeCode(methods, codeName, evalMaxStack, FIRST_CALL_SLOT + program.getMaxCalls(), evalCode);
+
+        ByteVector out = new ByteVector();
+        out.u4(0xCAFEBABE).u2(0).u2(CLASS_VERSION);
+        pool.writeTo(out);
+        out.u2(ACC_PUBLIC | ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass);
+        out.u2(1).u2(expression);
+        out.u2(1).u2(ACC_PRIVATE | ACC_FINAL).u2(rangesName).u2(rangesDesc).u2(0);
+        out.u2(2).bytes(methods);
+        out.u2(0);
+        return out.toByteArray();
+    }
+
+    private void writeConstructor(ByteVector methods, int codeName) {
+        ByteVector body = new ByteVector();
+        body.u1(ALOAD_0).u1(INVOKESPECIAL).u2(pool.methodRef(OBJECT, "<init>", "()V"));
+        body.u1(ALOAD_0).u1(ALOAD_1).u1(PUTFIELD).u2(rangesRef());
+        body.u1(RETURN);
+        methods.u2(ACC_PUBLIC)
+            .u2(pool.utf8("<init>"))
+            .u2(pool.utf8("([" + RANGE_DESC + ")V"));
+        writeCode(methods, codeName, 2, 2, body.toByteArray());
+    }
+
+    private static void writeCode(ByteVector methods, int codeName, int maxStack, int maxLocals, byte[] body) {
+        methods.u2(1).u2(codeName);
+        // attribute length: max_stack, max_locals, code_length, code, two empty tables
+        methods.u4(2 + 2 + 4 + body.length + 2 + 2);
+        methods.u2(maxStack).u2(maxLocals).u4(body.length);
+        for (byte b : body) {
+            methods.u1(b);
+        }
+        methods.u2(0).u2(0);
+    }
+
+    private byte[] translate(FormulaProgram program) {
+        int[] ops = program.getCode();
+        double[] constants = program.getConstants();
+        int calls = 0;
+        int pc = 0;
+        while (pc < ops.length) {
+            int op = ops[pc++];
+            switch (op) {
+                case FormulaProgram.PUSH_CONST:
+                    pushDouble(constants[ops[pc++]]);
+                    break;
+                case FormulaProgram.LOAD_CELL:
+                    loadCell(ops[pc], ops[pc + 1]);
+                    pc += 2;
+                    break;
+                case FormulaProgram.ADD:
+                case FormulaProgram.SUB:
+                case FormulaProgram.MUL:
+                case FormulaProgram.DIV:
+                    arithmetic(op);
+                    break;
+                case FormulaProgram.ADD_CONST:
+                case FormulaProgram.SUB_CONST:
+                case FormulaProgram.MUL_CONST:
+                case FormulaProgram.DIV_CONST:
+                    pushDouble(constants[ops[pc++]]);
+                    arithmetic(op - FormulaProgram.ADD_CONST + FormulaProgram.ADD);
+                    break;
+                case FormulaProgram.ADD_CELL:
+                case FormulaProgram.SUB_CELL:
+                case FormulaProgram.MUL_CELL:
+                case FormulaProgram.DIV_CELL:
+                    loadCell(ops[pc], ops[pc + 1]);
+                    pc += 2;
+                    arithmetic(op - FormulaProgram.ADD_CELL + FormulaProgram.ADD);
+                    break;
+                case FormulaProgram.BEGIN_AGG:
+                    pushInt(ops[pc++]);
+                    invokeRuntime("accumulator", "(I)" + ACCUMULATOR_DESC, 1, 1);
+                    code.u1(ASTORE).u1(FIRST_CALL_SLOT + calls++);
+                    adjust(-1);
+                    break;
+                case FormulaProgram.AGG_VALUE:
+                    loadAccumulator(calls);
+                    invokeRuntime("accept", "(D" + ACCUMULATOR_DESC + ")V", 3, 0);
+                    break;
+                case FormulaProgram.AGG_CELL:
+                    loadAccumulator(calls);
+                    code.u1(ALOAD_1);
+                    adjust(1);
+                    pushCoordinates(ops[pc], ops[pc + 1]);
+                    pc += 2;
+                    invokeRuntime("acceptCell", "(" + ACCUMULATOR_DESC + LOOKUP_DESC + "II)V", 4, 0);
+                    break;
+                case FormulaProgram.AGG_RANGE:
+                    loadAccumulator(calls);
+                    code.u1(ALOAD_1).u1(ALOAD_0).u1(GETFIELD).u2(rangesRef());
+                    adjust(2);
+                    pushInt(ops[pc++]);
+                    code.u1(AALOAD);
+                    adjust(-1);
+                    code.u1(ILOAD_2).u1(ILOAD_3);
+                    adjust(2);
+                    invokeRuntime("acceptRange", "(" + ACCUMULATOR_DESC + LOOKUP_DESC + RANGE_DESC + "II)V", 5, 0);
+                    break;
+                case FormulaProgram.END_AGG:
+                    loadAccumulator(calls--);
+                    invokeRuntime("result", "(" + ACCUMULATOR_DESC + ")D", 1, 2);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown opcode: " + op);
+            }
+            if (code.length() > MAX_CODE_LENGTH) {
+                return null;
+            }
+        }
+        code.u1(DRETURN);
+        if (code.length() > MAX_CODE_LENGTH || pool.size() > 0xFFFF) {
+            return null;
+        }
+        return code.toByteArray();
+    }
+
+    private void arithmetic(int op) {
+        switch (op) {
+            case FormulaProgram.ADD:
+                code.u1(DADD);
+                adjust(-2);
+                break;
+            case FormulaProgram.SUB:
+                code.u1(DSUB);
+                adjust(-2);
+                break;
+            case FormulaProgram.MUL:
+                code.u1(DMUL);
+                adjust(-2);
+                break;
+            default:
+                // division goes through the runtime for the divide-by-zero error
+                invokeRuntime("divide", "(DD)D", 4, 2);
+                break;
+        }
+    }
+
+    private void loadCell(int row, int column) {
+        code.u1(ALOAD_1);
+        adjust(1);
+        pushCoordinates(row, column);
+        invokeRuntime("cell", "(" + LOOKUP_DESC + "II)D", 3, 2);
+    }
+
+    private void pushCoordinates(int rowOffset, int columnOffset) {
+        pushInt(rowOffset);
+        code.u1(ILOAD_2).u1(IADD);
+        adjust(1);
+        adjust(-1);
+        pushInt(columnOffset);
+        code.u1(ILOAD_3).u1(IADD);
+        adjust(1);
+        adjust(-1);
+    }
+
+    private void loadAccumulator(int calls) {
+        code.u1(ALOAD).u1(FIRST_CALL_SLOT + calls - 1);
+        adjust(1);
+    }
+
+    private void pushDouble(double value) {
+        code.u1(LDC2_W).u2(pool.doubleValue(value));
+        adjust(2);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.u1(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.u1(BIPUSH).u1(value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            code.u1(SIPUSH).u2(value);
+        } else {
+            code.u1(LDC_W).u2(pool.integer(value));
+        }
+        adjust(1);
+    }
+
+    private void invokeRuntime(String name, String descriptor, int argumentSlots, int resultSlots) {
+        code.u1(INVOKESTATIC).u2(pool.methodRef(RUNTIME, name, descriptor));
+        adjust(resultSlots - argumentSlots);
+    }
+
+    private int rangesRef() {
+        return pool.fieldRef(className, RANGES_FIELD, "[" + RANGE_DESC);
+    }
+
+    private void adjust(int slots) {
+        stack += slots;
+        maxStack = Math.max(maxStack, stack);
+    }
+}
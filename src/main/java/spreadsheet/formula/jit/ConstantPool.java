@@ -0,0 +1,111 @@
+package spreadsheet.formula.jit;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Deduplicating constant pool for one generated class.
+
+final class ConstantPool {
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteVector entries = new ByteVector();
+    private final Map<String, Integer> indexes = new HashMap<>();
+    private int count = 1;
+
+    int utf8(String value) {
+        String key = "U" + value;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        entries.u1(UTF8).utf8(value);
+        return register(key, 1);
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        entries.u1(INTEGER).u4(value);
+        return register(key, 1);
+    }
+
+    int doubleValue(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        String key = "D" + bits;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        entries.u1(DOUBLE).u8(bits);
+        // eight-byte constants take two slots
+        return register(key, 2);
+    }
+
+    int classRef(String internalName) {
+        String key = "C" + internalName;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        int name = utf8(internalName);
+        entries.u1(CLASS).u2(name);
+        return register(key, 1);
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        return memberRef(FIELD_REF, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(METHOD_REF, owner, name, descriptor);
+    }
+
+    int size() {
+        return count;
+    }
+
+    void writeTo(ByteVector out) {
+        out.u2(count);
+        out.bytes(entries);
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        String key = tag + owner + "." + name + descriptor;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        int ownerIndex = classRef(owner);
+        int nameAndType = nameAndType(name, descriptor);
+        entries.u1(tag).u2(ownerIndex).u2(nameAndType);
+        return register(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        String key = "N" + name + ":" + descriptor;
+        Integer index = indexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        entries.u1(NAME_AND_TYPE).u2(nameIndex).u2(descriptorIndex);
+        return register(key, 1);
+    }
+
+    private int register(String key, int slots) {
+        int index = count;
+        indexes.put(key, index);
+        count += slots;
+        return index;
+    }
+}
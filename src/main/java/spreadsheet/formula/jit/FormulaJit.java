@@ -0,0 +1,94 @@
+package spreadsheet.formula.jit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import spreadsheet.formula.CompiledFormula;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.CompiledExpression;
+import spreadsheet.formula.eval.ExecutionTier;
+import spreadsheet.formula.eval.FormulaProgram;
+
+// Optional JVM tier: a formula evaluated `threshold` times is translated into its own class,
+// so the JIT sees plain double arithmetic instead of the interpreter loop.
+// Off by default. Only JVM entry points should call enable(); the web build never references
+// this package, so TeaVM keeps interpreting.
+// Each class gets its own loader, which lets it be unloaded once its formula is dropped.
+
+public final class FormulaJit {
+    public static final int DEFAULT_THRESHOLD = 1000;
+
+    private static final String PACKAGE = "spreadsheet.formula.jit.generated.";
+    private static final AtomicInteger CLASS_COUNTER = new AtomicInteger();
+
+    private FormulaJit() {
+    }
+
+    public static void enable() {
+        enable(DEFAULT_THRESHOLD);
+    }
+
+    public static void enable(int threshold) {
+        if (threshold < 1) {
+            throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+        }
+        CompiledFormula.setExecutionTier(new Tier(threshold));
+    }
+
+    public static void disable() {
+        CompiledFormula.setExecutionTier(null);
+    }
+
+    public static CompiledExpression compile(FormulaProgram program) {
+        // null when the program is too large for a single method
+        String name = PACKAGE + "Formula" + CLASS_COUNTER.incrementAndGet();
+        byte[] bytes = BytecodeGenerator.generate(name.replace('.', '/'), program);
+        if (bytes == null) {
+            return null;
+        }
+        try {
+            Class<?> generated = new GeneratedClassLoader(FormulaJit.class.getClassLoader())
+                .define(name, bytes);
+            return (CompiledExpression) generated
+                .getConstructor(RangeBounds[].class)
+                .newInstance((Object) program.getRanges());
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Generated formula class could not be created", ex);
+        }
+    }
+
+    private static final class Tier implements ExecutionTier {
+        private final int threshold;
+        // cleared on the first failure, e.g. when the runtime forbids defining classes
+        private volatile boolean available = true;
+
+        private Tier(int threshold) {
+            this.threshold = threshold;
+        }
+
+        public int threshold() {
+            return threshold;
+        }
+
+        public CompiledExpression compile(FormulaProgram program) {
+            if (!available) {
+                return null;
+            }
+            try {
+                return FormulaJit.compile(program);
+            } catch (LinkageError | RuntimeException ex) {
+                available = false;
+                return null;
+            }
+        }
+    }
+
+    private static final class GeneratedClassLoader extends ClassLoader {
+        private GeneratedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
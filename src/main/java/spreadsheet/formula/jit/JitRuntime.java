@@ -0,0 +1,57 @@
+package spreadsheet.formula.jit;
+
+import spreadsheet.exceptions.FormulaException;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.FormulaProgram;
+import spreadsheet.formula.functions.Accumulator;
+import spreadsheet.formula.functions.FunctionType;
+
+// Static helpers called from generated formula classes.
+// They live in another class loader, so everything they touch has to be public.
+// Each helper mirrors one FormulaProgram instruction, including its error messages.
+
+public final class JitRuntime {
+    private static final FunctionType[] FUNCTIONS = FunctionType.values();
+
+    private JitRuntime() {
+    }
+
+    public static double cell(CellLookup lookup, int row, int column) {
+        requireLookup(lookup);
+        return lookup.findCell(row, column);
+    }
+
+    public static double divide(double left, double right) {
+        return FormulaProgram.divide(left, right);
+    }
+
+    public static Accumulator accumulator(int function) {
+        return FUNCTIONS[function].newAccumulator();
+    }
+
+    public static void accept(double value, Accumulator accumulator) {
+        accumulator.accept(value);
+    }
+
+    public static void acceptCell(Accumulator accumulator, CellLookup lookup, int row, int column) {
+        requireLookup(lookup);
+        accumulator.accept(lookup.findCell(row, column));
+    }
+
+    public static void acceptRange(Accumulator accumulator, CellLookup lookup, RangeBounds range,
+                                   int originRow, int originColumn) {
+        requireLookup(lookup);
+        lookup.forEachValue(range.translate(originRow, originColumn), accumulator);
+    }
+
+    public static double result(Accumulator accumulator) {
+        return FormulaProgram.result(accumulator);
+    }
+
+    private static void requireLookup(CellLookup lookup) {
+        if (lookup == null) {
+            throw new FormulaException("Cell lookup not provided");
+        }
+    }
+}
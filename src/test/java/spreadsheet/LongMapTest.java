@@ -0,0 +1,102 @@
+package spreadsheet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class LongMapTest {
+
+    @Test
+    void behavesLikeHashMapUnderRandomEdits() {
+        // random puts and removes over a small key space so probe runs overlap and shift back
+        LongMap<Integer> map = new LongMap<>();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = CellAddress.pack(random.nextInt(40), random.nextInt(40));
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            } else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        map.forEach((key, value) -> assertEquals(expected.get(key), value));
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(null, map.get(CellAddress.pack(1, 1)));
+    }
+
+    @Test
+    void persistentMapKeepsOldVersionsIntact() {
+        PersistentLongMap<Integer> map = PersistentLongMap.empty();
+        Map<Long, Integer> expected = new HashMap<>();
+        Random random = new Random(7);
+        PersistentLongMap<Integer> halfway = null;
+        Map<Long, Integer> expectedHalfway = null;
+
+        for (int i = 0; i < 20000; i++) {
+            long key = CellAddress.pack(random.nextInt(200), random.nextInt(50));
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, i);
+                map = map.put(key, i);
+            }
+            assertEquals(expected.size(), map.size());
+            if (i == 10000) {
+                halfway = map;
+                expectedHalfway = new HashMap<>(expected);
+            }
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        Map<Long, Integer> snapshot = expectedHalfway;
+        assertEquals(snapshot.size(), halfway.size());
+        halfway.forEach((key, value) -> assertEquals(snapshot.get(key), value));
+
+        // a builder batch leaves the map it started from untouched
+        PersistentLongMap.Builder<Integer> builder = map.toBuilder();
+        for (long key : expected.keySet()) {
+            builder.remove(key);
+        }
+        builder.put(CellAddress.pack(1, 1), -1);
+        PersistentLongMap<Integer> rebuilt = builder.build();
+        assertEquals(1, rebuilt.size());
+        assertEquals(expected.size(), map.size());
+        map.forEach((key, value) -> assertEquals(expected.get(key), value));
+    }
+
+    @Test
+    void copyIsIndependentOfTheOriginal() {
+        LongMap<Integer> map = new LongMap<>();
+        for (int row = 1; row <= 5000; row++) {
+            map.put(CellAddress.pack(row, row % 7), row);
+        }
+        map.put(0L, -1);
+        LongMap<Integer> copy = map.copy();
+        copy.remove(CellAddress.pack(10, 3));
+        copy.put(CellAddress.pack(1, 1), 99);
+        copy.remove(0L);
+
+        assertEquals(5001, map.size());
+        assertEquals(10, map.get(CellAddress.pack(10, 3)));
+        assertEquals(1, map.get(CellAddress.pack(1, 1)));
+        assertEquals(-1, map.get(0L));
+        assertEquals(4999, copy.size());
+        assertEquals(null, copy.get(CellAddress.pack(10, 3)));
+        assertEquals(99, copy.get(CellAddress.pack(1, 1)));
+        assertEquals(4321, copy.get(CellAddress.pack(4321, 4321 % 7)));
+    }
+}
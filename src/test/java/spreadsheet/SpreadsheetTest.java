@@ -6,7 +6,14 @@ import static org.junit.jupiter.api.Assertions.assertThrows;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -365,4 +372,762 @@ class SpreadsheetTest {
 
         assertEquals("5.0", sheet.getCellDisplayValue(new CellAddress(1, 2)));
     }
+
+    @Test
+    void replacingFormulaDropsOldReferences() {
+        Spreadsheet sheet = new Spreadsheet();
+        CellAddress a1 = new CellAddress(1, 1);
+
+        sheet.setCellContent("B1", "1");
+        sheet.setCellContent("C1", "2");
+        sheet.setCellContent(a1, "=B1*10");
+        sheet.setCellContent(a1, "=C1*10");
+
+        sheet.setCellContent("B1", "5");
+        assertEquals("20.0", sheet.getCellDisplayValue(a1));
+        sheet.setCellContent("C1", "3");
+        assertEquals("30.0", sheet.getCellDisplayValue(a1));
+
+        sheet.setCellContent(a1, "plain");
+        sheet.setCellContent("C1", "4");
+        assertEquals("plain", sheet.getCellDisplayValue(a1));
+    }
+
+    @Test
+    void doublingChainIsEvaluatedOncePerCell() {
+        // every row references the previous one twice, without memoized values this is 2^n work
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "1");
+        for (int row = 2; row <= 80; row++) {
+            sheet.setCellContent(new CellAddress(row, 1), "=A" + (row - 1) + "+A" + (row - 1));
+        }
+
+        assertEquals(Double.toString(Math.pow(2, 79)), sheet.getCellDisplayValue("A80"));
+
+        sheet.setCellContent("A1", "2");
+        assertEquals(Double.toString(Math.pow(2, 80)), sheet.getCellDisplayValue("A80"));
+    }
+
+    @Test
+    void diamondDependentsAreRecomputedOncePerEdit() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "1");
+        sheet.setCellContent("B1", "=A1+1");
+        sheet.setCellContent("C1", "=A1*2");
+        sheet.setCellContent("D1", "=B1+C1");
+        sheet.setCellContent("E1", "=D1+B1");
+        sheet.setCellContent("F1", "=7");
+
+        sheet.setCellContent("A1", "3");
+
+        assertEquals(5, sheet.getLastRecalculationCount());
+        assertEquals("14.0", sheet.getCellDisplayValue("E1"));
+        assertEquals("7.0", sheet.getCellDisplayValue("F1"));
+    }
+
+    @Test
+    void largeRangeIsTrackedWithoutExpandingCells() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A5", "2");
+        sheet.setCellContent("B1", "=SUM(A1:A1000000)");
+        assertEquals("2.0", sheet.getCellDisplayValue("B1"));
+
+        sheet.setCellContent("A999999", "3");
+        assertEquals("5.0", sheet.getCellDisplayValue("B1"));
+        assertEquals(2, sheet.getLastRecalculationCount());
+
+        sheet.setCellContent("A5", null);
+        assertEquals("3.0", sheet.getCellDisplayValue("B1"));
+    }
+
+    @Test
+    void circularReferenceThroughRangeIsRejected() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("B5", "=SUM(A1:A10)");
+
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("A3", "=B5+1"));
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("C1", "=MAX(A1:C3)"));
+        assertEquals("", sheet.getCellContent("A3"));
+    }
+
+    @Test
+    void longRunningTotalColumnDoesNotOverflowCycleCheck() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "0");
+        for (int row = 2; row <= 50000; row++) {
+            sheet.setCellContent(new CellAddress(row, 1), "=A" + (row - 1) + "+1");
+        }
+
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("A1", "=A50000"));
+        assertEquals("0", sheet.getCellContent("A1"));
+
+        sheet.setCellContent("A1", "1");
+        assertEquals("50000.0", sheet.getCellDisplayValue("A50000"));
+    }
+
+    @Test
+    void loadingRecalculatesEachCellOnce() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.loadFromS2vString("=B1+C1;=C1*2;3\n=SUM(A1:C1);;text\n");
+
+        assertEquals("9.0", sheet.getCellDisplayValue("A1"));
+        assertEquals("6.0", sheet.getCellDisplayValue("B1"));
+        assertEquals("18.0", sheet.getCellDisplayValue("A2"));
+        assertEquals("text", sheet.getCellDisplayValue("C2"));
+        assertEquals(5, sheet.getLastRecalculationCount());
+    }
+
+    @Test
+    void loadingCircularReferencesFailsAndLeavesSheetEmpty() {
+        Spreadsheet sheet = new Spreadsheet();
+
+        assertThrows(FormulaException.class, () -> sheet.loadFromS2vString("=B1;=A1\n"));
+        assertEquals("", sheet.getCellContent("A1"));
+        assertEquals(0, sheet.getRowCount());
+    }
+
+    @Test
+    void batchEditsRecalculateAffectedCellsOnce() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("B1", "=SUM(A1:A3)");
+        sheet.setCellContent("C1", "=B1*2");
+
+        Map<CellAddress, String> edits = new LinkedHashMap<>();
+        edits.put(CellAddress.parseA1("A1"), "1");
+        edits.put(CellAddress.parseA1("A2"), "2");
+        edits.put(CellAddress.parseA1("A3"), "3");
+        sheet.applyEdits(edits);
+
+        assertEquals("12.0", sheet.getCellDisplayValue("C1"));
+        assertEquals(5, sheet.getLastRecalculationCount());
+    }
+
+    @Test
+    void batchWithCircularReferenceIsRolledBack() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "5");
+        sheet.setCellContent("B1", "=A1");
+
+        Map<CellAddress, String> edits = new LinkedHashMap<>();
+        edits.put(CellAddress.parseA1("C1"), "7");
+        edits.put(CellAddress.parseA1("A1"), "=B1");
+        edits.put(CellAddress.parseA1("B1"), "");
+
+        assertThrows(FormulaException.class, () -> sheet.applyEdits(Map.of(
+                CellAddress.parseA1("C1"), "7",
+                CellAddress.parseA1("A1"), "=B1")));
+        assertEquals("5", sheet.getCellContent("A1"));
+        assertEquals("", sheet.getCellContent("C1"));
+        assertEquals("5.0", sheet.getCellDisplayValue("B1"));
+
+        sheet.applyEdits(edits);
+        assertEquals("", sheet.getCellContent("B1"));
+        assertEquals("0.0", sheet.getCellDisplayValue("A1"));
+    }
+
+    @Test
+    void rolledBackBatchRestoresTheFormulaItOverwrote() {
+        for (CellStorage storage : CellStorage.values()) {
+            Spreadsheet sheet = new Spreadsheet(storage);
+            sheet.setCellContent("A1", "1");
+            sheet.setCellContent("B1", "=A1*2");
+            sheet.setCellContent("C1", "=B1+1");
+
+            assertThrows(FormulaException.class,
+                () -> sheet.applyEdits(Map.of(CellAddress.parseA1("B1"), "=C1")));
+            assertEquals("=A1*2", sheet.getCellContent("B1"));
+            assertEquals("3.0", sheet.getCellDisplayValue("C1"));
+
+            // the restored formula drives recalculation and the B1/C1 cycle is gone
+            sheet.setCellContent("A1", "5");
+            assertEquals("10.0", sheet.getCellDisplayValue("B1"));
+            sheet.setCellContent("C1", "=B1+2");
+            assertEquals("12.0", sheet.getCellDisplayValue("C1"));
+        }
+    }
+
+    @Test
+    void overwrittenFormulasDoNotKeepTheirShapes() throws InterruptedException {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", "1");
+        for (int i = 0; i < 2000; i++) {
+            sheet.setCellContent("B1", "=A1+" + i);
+        }
+        assertEquals("2000.0", sheet.getCellDisplayValue("B1"));
+        // shapes are held weakly, the ones no cell uses go once the collector clears them
+        for (int attempt = 0; attempt < 50 && sheet.getFormulaShapeCount() > 1; attempt++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(1, sheet.getFormulaShapeCount());
+    }
+
+    @Test
+    void columnarStorageMatchesHashedStorage() {
+        for (CellStorage storage : CellStorage.values()) {
+            Spreadsheet sheet = new Spreadsheet(storage);
+            for (int row = 1; row <= 3000; row++) {
+                sheet.setCellContentRC(row, 1, Integer.toString(row));
+                sheet.setCellContentRC(row, 2, "=A" + row + "*2");
+            }
+            sheet.setCellContent("C1", "=SUM(A1:B3000)");
+            sheet.setCellContent("C2", "=MAX(A1000:A2500)");
+            sheet.setCellContent("C3", "=AVERAGE(B1:B4)");
+            sheet.setCellContent("C4", "=SUM(A2999:A5000000)");
+
+            assertEquals("1.35045E7", sheet.getCellDisplayValue("C1"), storage.name());
+            assertEquals("2500.0", sheet.getCellDisplayValue("C2"), storage.name());
+            assertEquals("5.0", sheet.getCellDisplayValue("C3"), storage.name());
+            assertEquals("5999.0", sheet.getCellDisplayValue("C4"), storage.name());
+
+            sheet.setCellContent("A2", "text");
+            assertEquals("#ERR", sheet.getCellDisplayValue("C3"), storage.name());
+            sheet.setCellContent("A2", null);
+            assertEquals("4.0", sheet.getCellDisplayValue("C3"), storage.name());
+            assertEquals(6003, sheet.getNonEmptyCells().size(), storage.name());
+        }
+    }
+
+    @Test
+    void literalsKeepTheirTextButEvaluateAsTypedNumbers() {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("A1", " 007 ");
+        sheet.setCellContent("A2", "1e3");
+        sheet.setCellContent("A3", "#ERR");
+        sheet.setCellContent("B1", "=A1+A2");
+        sheet.setCellContent("B2", "=A3");
+
+        assertEquals(" 007 ", sheet.getCellDisplayValue("A1"));
+        assertEquals("1007.0", sheet.getCellDisplayValue("B1"));
+        assertEquals(false, sheet.isCellError("A3"));
+        assertEquals(true, sheet.isCellError("B2"));
+        assertEquals(1007.0, sheet.findCell(1, 2));
+    }
+
+    @Test
+    void copiedFormulasShareOneShape() {
+        Spreadsheet sheet = new Spreadsheet();
+        StringBuilder s2v = new StringBuilder();
+        for (int row = 1; row <= 1000; row++) {
+            s2v.append(row).append(';').append(2).append(";=A").append(row).append("*B").append(row)
+                .append(";=SUM(A1:A").append(row).append(")\n");
+        }
+        sheet.loadFromS2vString(s2v.toString());
+
+        // C column is one shape; D has a fixed top so each row is its own shape
+        assertEquals(1001, sheet.getFormulaShapeCount());
+        assertEquals("2000.0", sheet.getCellDisplayValue("C1000"));
+        assertEquals("500500.0", sheet.getCellDisplayValue("D1000"));
+
+        sheet.setCellContent("A1000", "7");
+        assertEquals("14.0", sheet.getCellDisplayValue("C1000"));
+        assertEquals("2.0", sheet.getCellDisplayValue("C1"));
+        sheet.setCellContent("E5", "=a5*b5");
+        assertEquals("10.0", sheet.getCellDisplayValue("E5"));
+        assertEquals(1002, sheet.getFormulaShapeCount());
+    }
+
+    @Test
+    void copiedFormulaRunsMatchPerCellEvaluation() {
+        for (CellStorage storage : CellStorage.values()) {
+            Spreadsheet sheet = new Spreadsheet(storage);
+            StringBuilder s2v = new StringBuilder();
+            for (int row = 1; row <= 100; row++) {
+                s2v.append(row).append(";2;=A").append(row).append("*B").append(row).append("+1")
+                    .append(";=C").append(row).append("/A").append(row)
+                    .append(row == 1 ? ";=C1" : ";=E" + (row - 1) + "+C" + row)
+                    .append('\n');
+            }
+            sheet.loadFromS2vString(s2v.toString());
+            assertEquals(500, sheet.getLastRecalculationCount(), storage.name());
+            assertEquals("201.0", sheet.getCellDisplayValue("C100"), storage.name());
+            assertEquals("2.01", sheet.getCellDisplayValue("D100"), storage.name());
+            assertEquals("10200.0", sheet.getCellDisplayValue("E100"), storage.name());
+
+            // one failing row inside a run only marks that row
+            sheet.setCellContent("B50", "text");
+            sheet.setCellContent("A10", "0");
+            assertEquals("#ERR", sheet.getCellDisplayValue("C50"), storage.name());
+            assertEquals("#ERR", sheet.getCellDisplayValue("D10"), storage.name());
+            assertEquals("1.0", sheet.getCellDisplayValue("C10"), storage.name());
+            assertEquals("103.0", sheet.getCellDisplayValue("C51"), storage.name());
+
+            Map<CellAddress, String> edits = new LinkedHashMap<>();
+            for (int row = 1; row <= 100; row++) {
+                edits.put(new CellAddress(row, 2), "3");
+            }
+            sheet.applyEdits(edits);
+            assertEquals("301.0", sheet.getCellDisplayValue("C100"), storage.name());
+            assertEquals("3.01", sheet.getCellDisplayValue("D100"), storage.name());
+            assertEquals("1.0", sheet.getCellDisplayValue("C10"), storage.name());
+        }
+    }
+
+    @Test
+    void parallelRecalculationMatchesSequential() {
+        StringBuilder s2v = new StringBuilder();
+        for (int row = 1; row <= 2000; row++) {
+            s2v.append(row % 7).append(";=A").append(row).append("*3-1")
+                .append(";=SUM(A").append(row).append(":B").append(row).append(")/2")
+                .append(";=MAX(C").append(row).append(";B").append(row).append(")+C").append(row)
+                .append(";=D").append(row).append("/(A").append(row).append("-3)")
+                .append('\n');
+        }
+        Spreadsheet sequential = new Spreadsheet();
+        Spreadsheet parallel = new Spreadsheet(CellStorage.COLUMNAR);
+        parallel.setRecalculationParallelism(4);
+        try {
+            sequential.loadFromS2vString(s2v.toString());
+            parallel.loadFromS2vString(s2v.toString());
+            assertEquals(sequential.getLastRecalculationCount(), parallel.getLastRecalculationCount());
+
+            Map<CellAddress, String> edits = new LinkedHashMap<>();
+            for (int row = 1; row <= 2000; row += 3) {
+                edits.put(new CellAddress(row, 1), String.valueOf(row % 5));
+            }
+            sequential.applyEdits(edits);
+            parallel.applyEdits(edits);
+            assertEquals(sequential.getLastRecalculationCount(), parallel.getLastRecalculationCount());
+
+            for (int row = 1; row <= 2000; row++) {
+                for (int column = 1; column <= 5; column++) {
+                    assertEquals(sequential.getCellDisplayValueRC(row, column),
+                        parallel.getCellDisplayValueRC(row, column), row + "," + column);
+                }
+            }
+        } finally {
+            parallel.setRecalculationParallelism(1);
+        }
+    }
+
+    @Test
+    void concurrentReadersSeeConsistentSnapshots() throws InterruptedException {
+        ConcurrentSpreadsheet sheet = new ConcurrentSpreadsheet();
+        sheet.loadFromS2vString("1;=A1*2;=B1+A1\n");
+        ConcurrentSpreadsheet.Snapshot first = sheet.snapshot();
+
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger inconsistent = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int t = 0; t < 2; t++) {
+            Thread reader = new Thread(() -> {
+                while (!done.get()) {
+                    ConcurrentSpreadsheet.Snapshot snapshot = sheet.snapshot();
+                    double a = Double.parseDouble(snapshot.getCellContent("A1"));
+                    double c = Double.parseDouble(snapshot.getCellDisplayValue("C1"));
+                    if (c != a * 3) {
+                        inconsistent.incrementAndGet();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        for (int i = 2; i <= 2000; i++) {
+            sheet.setCellContent("A1", String.valueOf(i));
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertEquals(0, inconsistent.get());
+        assertEquals("6000.0", sheet.getCellDisplayValue("C1"));
+        assertEquals("3.0", first.getCellDisplayValue("C1"));
+        assertEquals(2000, sheet.snapshot().getVersion());
+
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("A1", "=C1"));
+        assertEquals("2000", sheet.getCellContent("A1"));
+        sheet.setCellContent("B1", "");
+        assertEquals("", sheet.getCellDisplayValue("B1"));
+        assertEquals("2000.0", sheet.getCellDisplayValue("C1"));
+    }
+
+    @Test
+    void forksKeepEditsToThemselves() {
+        for (CellStorage storage : CellStorage.values()) {
+            Spreadsheet base = new Spreadsheet(storage);
+            base.loadFromS2vString("10;=A1*2;=SUM(A1:B1)\n5;=A2+B1;\n");
+
+            Spreadsheet fork = base.fork();
+            Spreadsheet snapshot = base.snapshot();
+            fork.setCellContent("A1", "100");
+            fork.setCellContent("C2", "=B2*10");
+            base.setCellContent("A2", "1");
+
+            assertEquals("200.0", fork.getCellDisplayValue("B1"));
+            assertEquals("300.0", fork.getCellDisplayValue("C1"));
+            assertEquals("205.0", fork.getCellDisplayValue("B2"));
+            assertEquals("2050.0", fork.getCellDisplayValue("C2"));
+
+            assertEquals("20.0", base.getCellDisplayValue("B1"));
+            assertEquals("21.0", base.getCellDisplayValue("B2"));
+            assertEquals("", base.getCellContent("C2"));
+
+            assertEquals("25.0", snapshot.getCellDisplayValue("B2"));
+            assertEquals("30.0", snapshot.getCellDisplayValue("C1"));
+            assertThrows(UnsupportedOperationException.class, () -> snapshot.setCellContent("A1", "1"));
+
+            // a fork of a fork still sees only its own line of edits
+            Spreadsheet nested = fork.fork();
+            nested.setCellContent("B1", "1");
+            assertEquals("101.0", nested.getCellDisplayValue("C1"));
+            assertEquals("300.0", fork.getCellDisplayValue("C1"));
+        }
+    }
+
+    @Test
+    void forksKeepEvaluationSettingsAndShapes() {
+        Spreadsheet base = new Spreadsheet(CellStorage.PERSISTENT);
+        base.setLazyEvaluation(true);
+        base.setRecalculationParallelism(2);
+        base.loadFromS2vString("1;=A1*2\n2;=A2*2\n");
+        int shapes = base.getFormulaShapeCount();
+
+        Spreadsheet fork = base.fork();
+        assertEquals(true, fork.isLazyEvaluation());
+        assertEquals(2, fork.getRecalculationParallelism());
+        fork.setCellContent("A3", "3");
+        fork.setCellContent("B3", "=A3*2");
+        assertEquals(shapes, fork.getFormulaShapeCount());
+        assertEquals(0, fork.getLastRecalculationCount());
+        assertEquals("6.0", fork.getCellDisplayValue("B3"));
+
+        // the fork shares the parent's pool, switching away only lets go of its share
+        fork.setRecalculationParallelism(1);
+        base.setLazyEvaluation(false);
+        base.setCellContent("A1", "5");
+        assertEquals(2, base.getRecalculationParallelism());
+        assertEquals("10.0", base.getCellDisplayValue("B1"));
+        assertEquals(true, fork.isLazyEvaluation());
+        assertEquals("2.0", fork.getCellDisplayValue("B1"));
+        // a read-only snapshot never recalculates, so it keeps no lazy mode
+        assertEquals(false, fork.snapshot().isLazyEvaluation());
+    }
+
+    @Test
+    void forksShareTheRecalculationPoolUntilTheLastUserLeaves() {
+        Spreadsheet base = new Spreadsheet();
+        base.setRecalculationParallelism(2);
+        StringBuilder s2v = new StringBuilder();
+        for (int row = 1; row <= 400; row++) {
+            s2v.append(row).append(";=A1*").append(row).append("\n");
+        }
+        base.loadFromS2vString(s2v.toString());
+        Spreadsheet fork = base.fork();
+
+        // the 400 dependents of A1 form one level large enough to go to the pool, which
+        // would reject the work had the parent shut it down
+        base.setRecalculationParallelism(1);
+        fork.setCellContent("A1", "2");
+        assertEquals(401, fork.getLastRecalculationCount());
+        assertEquals("800.0", fork.getCellDisplayValue("B400"));
+        assertEquals("400.0", base.getCellDisplayValue("B400"));
+    }
+
+    @Test
+    void forkChangesItsGraphWithoutTouchingTheParents() {
+        for (CellStorage storage : CellStorage.values()) {
+            Spreadsheet base = new Spreadsheet(storage);
+            base.loadFromS2vString("1;=A1*2;=SUM(A1:A3)\n2;=A1+A2\n3\n");
+            Spreadsheet fork = base.fork();
+            fork.setCellContent("B1", "=A3*2");
+            fork.setCellContent("C1", "=SUM(A2:A3)");
+            fork.setCellContent("B3", "=A1*10");
+
+            base.setCellContent("A1", "5");
+            assertEquals("10.0", base.getCellDisplayValue("B1"), storage.name());
+            assertEquals("10.0", base.getCellDisplayValue("C1"), storage.name());
+            assertEquals("7.0", base.getCellDisplayValue("B2"), storage.name());
+            assertEquals("", base.getCellDisplayValue("B3"), storage.name());
+
+            fork.setCellContent("A1", "4");
+            fork.setCellContent("A3", "6");
+            assertEquals("12.0", fork.getCellDisplayValue("B1"), storage.name());
+            assertEquals("8.0", fork.getCellDisplayValue("C1"), storage.name());
+            assertEquals("6.0", fork.getCellDisplayValue("B2"), storage.name());
+            assertEquals("40.0", fork.getCellDisplayValue("B3"), storage.name());
+            // the parent's edges are still its own after the fork's edits
+            base.setCellContent("A3", "1");
+            assertEquals("10.0", base.getCellDisplayValue("B1"), storage.name());
+            assertEquals("8.0", base.getCellDisplayValue("C1"), storage.name());
+        }
+    }
+
+    @Test
+    void sweepMatchesEditingTheInputsOneByOne() {
+        Spreadsheet sheet = new Spreadsheet();
+        StringBuilder s2v = new StringBuilder("2;3;=A1*B1;=SUM(C1:C200);=D1/A1;=B1+1\n");
+        for (int row = 2; row <= 200; row++) {
+            s2v.append(row).append(";;=C").append(row - 1).append("+A").append(row).append("\n");
+        }
+        sheet.loadFromS2vString(s2v.toString());
+
+        List<CellAddress> inputs = List.of(CellAddress.parseA1("A1"), CellAddress.parseA1("B1"));
+        List<CellAddress> outputs = List.of(CellAddress.parseA1("E1"), CellAddress.parseA1("D1"),
+            CellAddress.parseA1("F1"), CellAddress.parseA1("A2"));
+        double[][] scenarios = new double[500][];
+        for (int i = 0; i < scenarios.length; i++) {
+            scenarios[i] = new double[] {i % 7, i * 0.5};
+        }
+
+        double[][] parallel = sheet.sweep(inputs, scenarios, outputs, 4);
+        double[][] sequential = sheet.sweep(inputs, scenarios, outputs, 1);
+
+        assertEquals("2", sheet.getCellContent("A1"));
+        assertEquals("6.0", sheet.getCellDisplayValue("C1"));
+        Spreadsheet reference = sheet.fork();
+        for (int i = 0; i < scenarios.length; i += 37) {
+            reference.setCellContent("A1", Double.toString(scenarios[i][0]));
+            reference.setCellContent("B1", Double.toString(scenarios[i][1]));
+            for (int j = 0; j < outputs.size(); j++) {
+                double expected = reference.isCellError(outputs.get(j))
+                    ? Double.NaN
+                    : Double.parseDouble(reference.getCellDisplayValue(outputs.get(j)));
+                assertEquals(expected, parallel[i][j]);
+                assertEquals(expected, sequential[i][j]);
+            }
+        }
+        assertThrows(IllegalArgumentException.class,
+            () -> sheet.sweep(inputs, new double[][] {{1.0}}, outputs));
+    }
+
+    @Test
+    void lazyModeComputesOnlyWhatIsRead() {
+        Spreadsheet sheet = new Spreadsheet();
+        StringBuilder s2v = new StringBuilder("1;=SUM(A1:A50000)\n");
+        for (int row = 2; row <= 50000; row++) {
+            s2v.append("=A").append(row - 1).append("+1\n");
+        }
+        sheet.loadFromS2vString(s2v.toString());
+        sheet.setLazyEvaluation(true);
+
+        sheet.setCellContent("A1", "2");
+        assertEquals(0, sheet.getLastRecalculationCount());
+        assertEquals(true, sheet.getCell(50000, 1).isDirty());
+
+        // the chain is evaluated iteratively, reading the end does not overflow the stack
+        assertEquals("50001.0", sheet.getCellDisplayValue("A50000"));
+        assertEquals(true, sheet.getCell(1, 2).isDirty());
+        assertEquals(1250075000.0, sheet.findCell(1, 2));
+
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("A1", "=A3"));
+        sheet.setCellContent("A1", "3");
+        Spreadsheet fork = sheet.fork();
+        fork.setCellContent("A1", "0");
+        assertEquals("50002.0", sheet.getCellDisplayValue("A50000"));
+        assertEquals("49999.0", fork.getCellDisplayValue("A50000"));
+
+        sheet.setCellContent("A1", "1");
+        sheet.setLazyEvaluation(false);
+        assertEquals(false, sheet.getCell(25000, 1).isDirty());
+        assertEquals("25000.0", sheet.getCellDisplayValue("A25000"));
+    }
+
+    @Test
+    void lazyRangeReadAfterPartialReadsCanBeFlushed() throws IOException {
+        // A1 is read first, so it stays in the pending set once up to date; evaluating B1's
+        // range then drops it while the flush is still walking that set
+        for (CellStorage storage : CellStorage.values()) {
+            for (int flush = 0; flush < 3; flush++) {
+                Spreadsheet sheet = new Spreadsheet(storage);
+                sheet.loadFromS2vString("=Z1+1;=SUM(A1:A100)\n=Z1+2\n=Z1+3\n");
+                sheet.setLazyEvaluation(true);
+                sheet.setCellContent("Z1", "10");
+                assertEquals("11.0", sheet.getCellDisplayValue("A1"));
+
+                Spreadsheet values = sheet;
+                if (flush == 0) {
+                    values = sheet.fork();
+                } else if (flush == 1) {
+                    sheet.setLazyEvaluation(false);
+                } else {
+                    sheet.saveSnapshot(tempDir.resolve("lazy-" + storage + ".snapshot").toString());
+                }
+                assertEquals(false, sheet.getCell(1, 2).isDirty(), storage.name());
+                assertEquals("36.0", values.getCellDisplayValue("B1"), storage.name());
+                assertEquals("13.0", values.getCellDisplayValue("A3"), storage.name());
+            }
+        }
+    }
+
+    @Test
+    void mappedReaderMatchesLineReader() throws IOException {
+        String s2v = "1; 2 ;;=SUM(A1;B1)\r\n\n  ;=MAX(A1,B1);caf\u00e9\r=A1+(B1;x\u2003\n;;\u2003;7";
+        Path file = tempDir.resolve("mixed.s2v");
+        Files.write(file, s2v.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+
+        List<String> mapped = new ArrayList<>();
+        List<String> lines = new ArrayList<>();
+        S2vReader.readMapped(file, (row, column, content) -> mapped.add(row + ":" + column + ":" + content));
+        S2vReader.readLines(new java.io.BufferedReader(new java.io.StringReader(s2v)),
+            (row, column, content) -> lines.add(row + ":" + column + ":" + content));
+
+        assertEquals(lines, mapped);
+        assertEquals(List.of("1:1:1", "1:2: 2 ", "1:4:=SUM(A1;B1)", "3:2:=MAX(A1;B1)", "3:3:caf\u00e9",
+            "4:1:=A1+(B1;x\u2003", "5:4:7"), mapped);
+    }
+
+    @Test
+    void parallelLoadMatchesSequentialLoad() throws IOException {
+        // large enough to be split into chunks; CRLF and LF lines are mixed on purpose
+        StringBuilder s2v = new StringBuilder();
+        for (int row = 1; row <= 40000; row++) {
+            s2v.append(row).append(";=A").append(row).append("*2;=SUM(A").append(row).append(":B").append(row)
+               .append(");item ").append(row).append(row % 3 == 0 ? "\r\n" : "\n");
+        }
+        Path file = tempDir.resolve("large.s2v");
+        Files.writeString(file, s2v);
+
+        Spreadsheet sequential = new Spreadsheet();
+        sequential.setLoadParallelism(1);
+        sequential.loadFromFile(file.toString());
+        Spreadsheet parallel = new Spreadsheet();
+        parallel.setLoadParallelism(4);
+        parallel.loadFromFile(file.toString());
+
+        assertEquals(sequential.getFormulaShapeCount(), parallel.getFormulaShapeCount());
+        for (int row = 1; row <= 40000; row += 397) {
+            for (String column : List.of("A", "B", "C", "D")) {
+                assertEquals(sequential.getCellContent(column + row), parallel.getCellContent(column + row));
+                assertEquals(sequential.getCellDisplayValue(column + row), parallel.getCellDisplayValue(column + row));
+            }
+        }
+        assertEquals("item 40000", parallel.getCellContent("D40000"));
+        assertEquals("120000.0", parallel.getCellDisplayValue("C40000"));
+    }
+
+    @Test
+    void saveWritesTheFullRectangleFromOccupiedCellsOnly() throws IOException {
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setCellContent("C1", "=SUM(A3;B3)");
+        sheet.setCellContent("A3", "1");
+        sheet.setCellContent("B3", "2");
+        sheet.setCellContent("Z100000", "far");
+        Path file = tempDir.resolve("sparse.s2v");
+        sheet.saveToFile(file.toString());
+
+        List<String> lines = Files.readAllLines(file);
+        String empty = ";".repeat(25);
+        assertEquals(100000, lines.size());
+        assertEquals(";;=SUM(A3,B3)" + ";".repeat(23), lines.get(0));
+        assertEquals(empty, lines.get(1));
+        assertEquals("1;2" + ";".repeat(24), lines.get(2));
+        assertEquals(empty + "far", lines.get(99999));
+
+        Spreadsheet loaded = new Spreadsheet();
+        loaded.loadFromFile(file.toString());
+        assertEquals("3.0", loaded.getCellDisplayValue("C1"));
+        assertEquals("far", loaded.getCellContent("Z100000"));
+    }
+
+    @Test
+    void binarySnapshotRestoresValuesAndGraphWithoutRecalculating() throws IOException {
+        Spreadsheet sheet = new Spreadsheet();
+        StringBuilder s2v = new StringBuilder();
+        for (int row = 1; row <= 20; row++) {
+            s2v.append(row).append(";=A").append(row).append("*2\n");
+        }
+        s2v.append("text;=SUM(B1:B20);=A21+1;=MAX(A1;C21)/0\n");
+        sheet.loadFromS2vString(s2v.toString());
+        Path file = tempDir.resolve("model.bin");
+        sheet.saveSnapshot(file.toString());
+
+        Spreadsheet restored = new Spreadsheet(CellStorage.COLUMNAR);
+        restored.loadSnapshot(file.toString());
+        for (CellAddress address : sheet.getNonEmptyCells()) {
+            assertEquals(sheet.getCellContent(address), restored.getCellContent(address));
+            assertEquals(false, restored.getCell(address.getRow(), address.getColumn()).isDirty());
+            assertEquals(sheet.getCellDisplayValue(address), restored.getCellDisplayValue(address));
+        }
+        assertEquals("420.0", restored.getCellDisplayValue("B21"));
+        assertEquals(true, restored.isCellError("C21"));
+        assertEquals(true, restored.isCellError("D21"));
+
+        // the restored graph drives recalculation as before
+        restored.setCellContent("A1", "100");
+        assertEquals("618.0", restored.getCellDisplayValue("B21"));
+        restored.setCellContent("A21", "1");
+        assertEquals("2.0", restored.getCellDisplayValue("C21"));
+
+        Files.write(file, new byte[] {0x53, 0x32, 0x56, 0x42, 0, 0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 2, 99, 0});
+        assertThrows(IOException.class, () -> restored.loadSnapshot(file.toString()));
+        assertEquals(List.of(), restored.getNonEmptyCells());
+    }
+
+    @Test
+    void journalReplaysEditsOnTopOfTheLastSnapshot() throws IOException {
+        Path base = tempDir.resolve("model");
+        Spreadsheet sheet = new Spreadsheet();
+        EditJournal journal = EditJournal.open(base, sheet);
+        journal.setSyncEvery(3);
+        sheet.setCellContent("A1", "2");
+        sheet.setCellContent("A2", "=A1*10");
+        Map<CellAddress, String> batch = new LinkedHashMap<>();
+        batch.put(CellAddress.parseA1("A1"), "4");
+        batch.put(CellAddress.parseA1("B1"), "=A2+1");
+        sheet.applyEdits(batch);
+        // rejected edits are not journaled
+        assertThrows(FormulaException.class, () -> sheet.setCellContent("A1", "=B1"));
+        journal.close();
+
+        Spreadsheet reopened = new Spreadsheet();
+        journal = EditJournal.open(base, reopened);
+        assertEquals("41.0", reopened.getCellDisplayValue("B1"));
+        assertEquals(0L, journal.getGeneration());
+
+        // compaction folds the journal into the snapshot
+        reopened.setCellContent("C1", "=B1*2");
+        journal.compact();
+        reopened.setCellContent("A1", "");
+        journal.close();
+        Files.copy(base.resolveSibling("model.journal"), tempDir.resolve("stale"));
+
+        reopened = new Spreadsheet();
+        journal = EditJournal.open(base, reopened);
+        assertEquals(1L, journal.getGeneration());
+        assertEquals("2.0", reopened.getCellDisplayValue("C1"));
+        assertEquals("", reopened.getCellContent("A1"));
+        reopened.setCellContent("D1", "7");
+        journal.close();
+
+        // a torn record at the end is dropped, the records before it still replay
+        Path journalFile = base.resolveSibling("model.journal");
+        long complete = Files.size(journalFile);
+        Files.write(journalFile, new byte[] {0, 0, 0, 40, 1, 2}, StandardOpenOption.APPEND);
+        reopened = new Spreadsheet();
+        journal = EditJournal.open(base, reopened);
+        assertEquals("7", reopened.getCellContent("D1"));
+        assertEquals(complete, Files.size(journalFile));
+        journal.compact();
+        journal.close();
+
+        // a journal older than the snapshot was already compacted and is ignored
+        Files.copy(tempDir.resolve("stale"), journalFile, StandardCopyOption.REPLACE_EXISTING);
+        reopened = new Spreadsheet();
+        journal = EditJournal.open(base, reopened);
+        assertEquals("7", reopened.getCellContent("D1"));
+        assertEquals("", reopened.getCellContent("A1"));
+        journal.close();
+    }
+
+    @Test
+    void stringLoadIntoAJournaledLazySheetBecomesTheNewSnapshot() throws IOException {
+        Path base = tempDir.resolve("lazy");
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setLazyEvaluation(true);
+        EditJournal journal = EditJournal.open(base, sheet);
+        sheet.setCellContent("A1", "5");
+        sheet.loadFromS2vString("=Z1+1;=SUM(A1:A100)\n=Z1+2\n");
+        assertEquals(1L, journal.getGeneration());
+        sheet.setCellContent("Z1", "10");
+        assertEquals("11.0", sheet.getCellDisplayValue("A1"));
+        sheet.setCellContent("A3", "1");
+        journal.close();
+
+        Spreadsheet reopened = new Spreadsheet();
+        journal = EditJournal.open(base, reopened);
+        assertEquals("24.0", reopened.getCellDisplayValue("B1"));
+        journal.close();
+    }
 }
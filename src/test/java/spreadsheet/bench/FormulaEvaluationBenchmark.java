@@ -0,0 +1,81 @@
+package spreadsheet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import spreadsheet.formula.ast.ExpressionNode;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.CompiledExpression;
+import spreadsheet.formula.eval.FormulaCompiler;
+import spreadsheet.formula.eval.FormulaEvaluator;
+import spreadsheet.formula.eval.FormulaProgram;
+import spreadsheet.formula.jit.FormulaJit;
+import spreadsheet.formula.lexer.FormulaTokenizer;
+import spreadsheet.formula.parser.ShuntingYardParser;
+
+// Tree walker vs instruction array vs generated class on the same parsed formulas.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+//   -Dexec.mainClass=spreadsheet.bench.FormulaEvaluationBenchmark
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormulaEvaluationBenchmark {
+    @Param({
+        "A1+B1*2-C1/4",
+        "((A1+B2)*(C3-D4)+(E5-F6)/(G7+1))*2-H8",
+        "SUM(A1:A20)+MAX(B1;B2;B3)*AVERAGE(C1:D5)"
+    })
+    public String expression;
+
+    private ExpressionNode ast;
+    private FormulaProgram program;
+    private CompiledExpression generated;
+    private CellLookup lookup;
+
+    @Setup
+    public void setUp() {
+        ast = ShuntingYardParser.parse(FormulaTokenizer.tokenize(expression));
+        program = FormulaCompiler.compile(ast);
+        generated = FormulaJit.compile(program);
+        lookup = (row, column) -> row * 0.5 + column;
+    }
+
+    @Benchmark
+    public double treeWalker() {
+        return FormulaEvaluator.evaluate(ast, lookup);
+    }
+
+    @Benchmark
+    public double instructionArray() {
+        return program.evaluate(lookup);
+    }
+
+    @Benchmark
+    public double generatedClass() {
+        return generated.eval(lookup, 0, 0);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(FormulaEvaluationBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -0,0 +1,95 @@
+package spreadsheet.bench;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import spreadsheet.S2vReader;
+
+// Tokenizing throughput of the memory-mapped reader vs readLine + split on the same file.
+// Each invocation reads a FILE_MB megabyte file and counts as FILE_MB operations,
+// so the reported ops/s is MB/s. Loading into a sheet is left out, only the scan is measured.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+//   -Dexec.mainClass=spreadsheet.bench.S2vReaderBenchmark
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class S2vReaderBenchmark {
+    private static final int FILE_MB = 64;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void writeFile() throws IOException {
+        // numbers, text and copied formulas, roughly what an export looks like
+        file = Files.createTempFile("bench", ".s2v");
+        long target = FILE_MB * 1024L * 1024L;
+        long written = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (int row = 1; written < target; row++) {
+                String line = row + ";" + (row * 0.25) + ";item " + row + ";;=A" + row + "*B" + row
+                    + ";=SUM(A" + row + ",B" + row + ",E" + row + ")";
+                if (written + line.length() + 1 > target) {
+                    line = line.substring(0, (int) (target - written - 1));
+                }
+                writer.write(line);
+                writer.newLine();
+                written += line.length() + 1;
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public long mappedReader() throws IOException {
+        long[] checksum = new long[1];
+        S2vReader.readMapped(file, (row, column, content) -> checksum[0] += row + column + content.length());
+        return checksum[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FILE_MB)
+    public long lineReader() throws IOException {
+        long[] checksum = new long[1];
+        try (BufferedReader reader = new BufferedReader(new FileReader(file.toFile()))) {
+            S2vReader.readLines(reader, (row, column, content) -> checksum[0] += row + column + content.length());
+        }
+        return checksum[0];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+            .include(S2vReaderBenchmark.class.getSimpleName())
+            .build()).run();
+    }
+}
@@ -3,13 +3,29 @@ package spreadsheet.formula;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Test;
 
+import spreadsheet.CellAddress;
 import spreadsheet.exceptions.FormulaException;
 import spreadsheet.formula.ast.ExpressionNode;
+import spreadsheet.formula.ast.RangeBounds;
+import spreadsheet.formula.eval.CellLookup;
+import spreadsheet.formula.eval.CompiledExpression;
+import spreadsheet.formula.eval.ExecutionTier;
+import spreadsheet.formula.eval.FormulaCompiler;
 import spreadsheet.formula.eval.FormulaEvaluator;
+import spreadsheet.formula.eval.FormulaProgram;
+import spreadsheet.formula.functions.Accumulator;
+import spreadsheet.formula.jit.FormulaJit;
+import spreadsheet.formula.functions.FunctionType;
 import spreadsheet.formula.lexer.FormulaTokenizer;
 import spreadsheet.formula.lexer.Token;
 import spreadsheet.formula.lexer.TokenType;
@@ -96,4 +112,137 @@ class FormulaTest {
 
         assertThrows(FormulaException.class, () -> ShuntingYardParser.parse(tokens));
     }
+
+    @Test
+    void compiledFormulaCollectsReferencesOnce() {
+        CompiledFormula formula = FormulaEngine.compile("A1+SUM(B1:B2)");
+
+        assertEquals(Set.of(new CellAddress(1, 1)), formula.getCellReferences());
+        assertEquals(List.of(new RangeBounds(1, 2, 2, 2)), formula.getRangeReferences());
+        assertEquals(9.0, formula.evaluate((row, column) -> row + column));
+    }
+
+    @Test
+    void accumulatorsStreamValuesWithoutAList() {
+        Accumulator min = FunctionType.MIN.newAccumulator();
+        min.accept(4.0);
+        min.accept(-2.0);
+        min.accept(7.0);
+        assertEquals(-2.0, min.result());
+
+        Accumulator average = FunctionType.AVERAGE.newAccumulator();
+        average.accept(1.0);
+        average.accept(2.0);
+        assertEquals(1.5, average.result());
+
+        assertThrows(IllegalArgumentException.class, () -> FunctionType.MAX.newAccumulator().result());
+        assertEquals(6.0, FormulaEngine.evaluate("MAX(A1:C2;1)", (row, column) -> row * column));
+    }
+
+    @Test
+    void instructionArrayMatchesTreeWalker() {
+        CellLookup lookup = (row, column) -> row * 10 + column;
+        String[] expressions = {
+            "1+2*3-4/2",
+            "(A1+B2)*(C3-1)/2",
+            "SUM(A1:C3;MAX(B1;2*A2);AVERAGE(A1:A4))-MIN(C1:C2)",
+            "SUM(SUM(A1;B1);SUM(A2:B2))"
+        };
+        for (String expression : expressions) {
+            ExpressionNode ast = ShuntingYardParser.parse(FormulaTokenizer.tokenize(expression));
+            FormulaProgram program = FormulaCompiler.compile(ast);
+            assertEquals(FormulaEvaluator.evaluate(ast, lookup), program.evaluate(lookup), expression);
+        }
+
+        FormulaProgram division = FormulaCompiler.compile(ShuntingYardParser.parse(FormulaTokenizer.tokenize("A1/0")));
+        assertThrows(FormulaException.class, () -> division.evaluate(lookup));
+        assertThrows(FormulaException.class, () -> FormulaEngine.compile("FOO(1)"));
+    }
+
+    @Test
+    void generatedClassMatchesInterpreter() {
+        CellLookup lookup = (row, column) -> row * 10 + column;
+        String[] expressions = {
+            "1+2*3-4/2",
+            "(A1+B2)*(C3-1)/2+A300*1000",
+            "SUM(A1:C3;MAX(B1;2*A2);AVERAGE(A1:A4))-MIN(C1:C2)",
+            "SUM(SUM(A1;B1);SUM(A2:B2;MAX(C1;SUM(D1:D2))))"
+        };
+        for (String expression : expressions) {
+            FormulaProgram program = FormulaEngine.compile(expression).getProgram();
+            CompiledExpression generated = FormulaJit.compile(program);
+            assertEquals(program.evaluate(lookup), generated.eval(lookup, 0, 0), expression);
+        }
+
+        CompiledExpression division = FormulaJit.compile(FormulaEngine.compile("A1/(B1-B1)").getProgram());
+        assertThrows(FormulaException.class, () -> division.eval(lookup, 0, 0));
+    }
+
+    @Test
+    void hotFormulaSwitchesTierWithoutChangingResults() {
+        CompiledFormula formula = FormulaEngine.compile("SUM(A1:B2)*C1-1");
+        CellLookup lookup = (row, column) -> row + column;
+        double expected = formula.evaluate(lookup);
+        FormulaJit.enable(2);
+        try {
+            for (int i = 0; i < 5; i++) {
+                assertEquals(expected, formula.evaluate(lookup));
+            }
+        } finally {
+            FormulaJit.disable();
+        }
+    }
+
+    @Test
+    void sharedShapeIsTranslatedOnceUnderConcurrentEvaluation() throws Exception {
+        CompiledFormula formula = FormulaEngine.compile("A1*B1+C1");
+        CellLookup lookup = (row, column) -> row + column;
+        double expected = formula.evaluate(lookup);
+        AtomicInteger translations = new AtomicInteger();
+        CompiledFormula.setExecutionTier(new ExecutionTier() {
+            public int threshold() {
+                return 1000;
+            }
+
+            public CompiledExpression compile(FormulaProgram program) {
+                translations.incrementAndGet();
+                return FormulaJit.compile(program);
+            }
+        });
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                workers.add(pool.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        assertEquals(expected, formula.evaluate(lookup));
+                    }
+                }));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } finally {
+            pool.shutdown();
+            CompiledFormula.setExecutionTier(null);
+        }
+        assertEquals(1, translations.get());
+    }
+
+    @Test
+    void shapesResolveReferencesFromTheirOrigin() {
+        FormulaShapeCache shapes = new FormulaShapeCache();
+        CompiledFormula first = shapes.compile("A1*B1+SUM(A1:B2)", 1, 3);
+        CompiledFormula copy = shapes.compile("A5*B5+SUM(A5:B6)", 5, 3);
+        CellLookup lookup = (row, column) -> row * 10 + column;
+
+        assertEquals(1, shapes.size());
+        assertEquals(first.getShape(), copy.getShape());
+        assertEquals(Set.of(new CellAddress(5, 1), new CellAddress(5, 2)), copy.getCellReferences());
+        assertEquals(List.of(new RangeBounds(5, 1, 6, 2)), copy.getRangeReferences());
+        assertEquals(FormulaEngine.evaluate("A5*B5+SUM(A5:B6)", lookup), copy.evaluate(lookup));
+
+        CompiledExpression generated = FormulaJit.compile(copy.getProgram());
+        assertEquals(copy.evaluate(lookup), generated.eval(lookup, 5, 3));
+    }
 }